@@ -1,12 +1,18 @@
 package com.findarecord;
 
-import com.couchbase.capi.CAPIBehavior;
 import com.couchbase.capi.CAPIServer;
 import com.couchbase.capi.CouchbaseBehavior;
 
+import com.findarecord.couchbase.BulkLoader;
 import com.findarecord.couchbase.CouchbaseBehaviorImpl;
 import com.findarecord.couchbase.CouchbaseCAPIBehaviorImpl;
+import com.findarecord.neo4j.BoxCache;
+import com.findarecord.neo4j.BoxReplica;
+import com.findarecord.neo4j.HitCache;
+import com.findarecord.neo4j.QueryExecutor;
+import com.findarecord.neo4j.Rollups;
 import com.findarecord.neo4j.QueryServer;
+import com.findarecord.neo4j.TagDictionary;
 import org.apache.commons.cli.*;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -18,6 +24,9 @@ import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 
 import org.eclipse.jetty.server.Server;
 
+import java.io.File;
+import java.io.IOException;
+
 public class App 
 {
   static Logger logger = Logger.getLogger(App.class);
@@ -27,10 +36,25 @@ public class App
   static String username = "Administrator";
   static String password = "1gs234";
   static int concurrency = 8;
+  static int cache_mb = 64;
+  static int hit_cache_mb = 256;
+  static int commit_docs = 1000;
+  static int commit_window_ms = 10;
+  static int commit_timeout_ms = 60000;
+  static int ingest_threads = Runtime.getRuntime().availableProcessors();
+  static int rev_cache_size = 1000000;
+  static int query_threads = Runtime.getRuntime().availableProcessors();
+  static boolean rebuild_rollups = false;
+  static String replica_dir;
+  static int replica_delta = 100000;
+  static String bulk_load;
+  static String bulk_key = "_id";
   static String neo4j_dir;
 
   private static GraphDatabaseService graphDb;
 
+  private static volatile CouchbaseCAPIBehaviorImpl capiBehavior;
+
   // TODO use Apache Commons CLI Builder to get hostname and port
   public static void main( String[] args )
   {
@@ -64,6 +88,43 @@ public class App
       if(cmd.hasOption("concurrency")) {
         concurrency = ((Number)cmd.getParsedOptionValue("concurrency")).intValue();
       }
+      if(cmd.hasOption("cache_mb")) {
+        cache_mb = ((Number)cmd.getParsedOptionValue("cache_mb")).intValue();
+      }
+      if(cmd.hasOption("hit_cache_mb")) {
+        hit_cache_mb = ((Number)cmd.getParsedOptionValue("hit_cache_mb")).intValue();
+      }
+      if(cmd.hasOption("commit_docs")) {
+        commit_docs = ((Number)cmd.getParsedOptionValue("commit_docs")).intValue();
+      }
+      if(cmd.hasOption("commit_window_ms")) {
+        commit_window_ms = ((Number)cmd.getParsedOptionValue("commit_window_ms")).intValue();
+      }
+      if(cmd.hasOption("commit_timeout_ms")) {
+        commit_timeout_ms = ((Number)cmd.getParsedOptionValue("commit_timeout_ms")).intValue();
+      }
+      if(cmd.hasOption("ingest_threads")) {
+        ingest_threads = ((Number)cmd.getParsedOptionValue("ingest_threads")).intValue();
+      }
+      if(cmd.hasOption("rev_cache_size")) {
+        rev_cache_size = ((Number)cmd.getParsedOptionValue("rev_cache_size")).intValue();
+      }
+      if(cmd.hasOption("query_threads")) {
+        query_threads = ((Number)cmd.getParsedOptionValue("query_threads")).intValue();
+      }
+      rebuild_rollups = cmd.hasOption("rebuild_rollups");
+      if(cmd.hasOption("replica_dir")) {
+        replica_dir = (String) cmd.getParsedOptionValue("replica_dir");
+      }
+      if(cmd.hasOption("replica_delta")) {
+        replica_delta = ((Number)cmd.getParsedOptionValue("replica_delta")).intValue();
+      }
+      if(cmd.hasOption("bulk_load")) {
+        bulk_load = (String) cmd.getParsedOptionValue("bulk_load");
+      }
+      if(cmd.hasOption("bulk_key")) {
+        bulk_key = (String) cmd.getParsedOptionValue("bulk_key");
+      }
     } catch (ParseException e) {
       System.err.println("Wrong parameters:" + e.getMessage());
       help.printHelp("spatial-index", options);
@@ -73,19 +134,49 @@ public class App
     BasicConfigurator.configure();
     Logger.getRootLogger().setLevel(Level.INFO);
 
+    //an offline load owns the store, so it runs instead of the server
+    if(bulk_load != null) {
+      logger.info("Bulk loading " + bulk_load);
+      try {
+        new BulkLoader(neo4j_dir, bulk_key, ingest_threads, logger).load(new File(bulk_load));
+      } catch (IOException e) {
+        logger.error("Bulk load failed", e);
+        System.exit(1);
+      }
+      logger.info("Bulk loaded " + bulk_load);
+      return;
+    }
+
     graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(neo4j_dir);
     registerShutdownHook( graphDb );
 
+    BoxCache boxCache = new BoxCache(cache_mb * 1024L * 1024L);
+    HitCache hitCache = new HitCache(graphDb, hit_cache_mb * 1024L * 1024L);
+    QueryExecutor queryExecutor = new QueryExecutor(query_threads);
+    TagDictionary tagDictionary = new TagDictionary();
+
+    if(rebuild_rollups) {
+      logger.info("Rebuilding heatmap rollups");
+      Rollups.rebuild(graphDb, boxCache, tagDictionary);
+      logger.info("Rebuilt heatmap rollups");
+    }
+
+    BoxReplica replica = null;
+    if(replica_dir != null) {
+      replica = new BoxReplica(graphDb, boxCache, new File(replica_dir), replica_delta);
+      replica.start();
+    }
+
     Server server = new Server(app_port);
 
     ServletContextHandler context = new ServletContextHandler(
         ServletContextHandler.NO_SESSIONS);
     context.setContextPath("/");
-    context.addServlet(new ServletHolder(new QueryServer(graphDb)),"/");
+    context.addServlet(new ServletHolder(new QueryServer(graphDb, boxCache, hitCache, queryExecutor, tagDictionary, replica)),"/");
     server.setHandler(context);
 
     CouchbaseBehavior couchbaseBehavior = new CouchbaseBehaviorImpl(hostname,xdcr_port);
-    CAPIBehavior capiBehavior = new CouchbaseCAPIBehaviorImpl(concurrency, logger, graphDb);
+    capiBehavior = new CouchbaseCAPIBehaviorImpl(concurrency, logger, graphDb, boxCache, tagDictionary, commit_docs, commit_window_ms, commit_timeout_ms, ingest_threads, rev_cache_size);
 
     CAPIServer capiServer = new CAPIServer(capiBehavior, couchbaseBehavior, xdcr_port, username,password);
     try {
@@ -108,6 +199,10 @@ public class App
       @Override
       public void run()
       {
+        //drain queued XDCR writes while the graph is still open
+        if(capiBehavior != null) {
+          capiBehavior.shutdown();
+        }
         graphDb.shutdown();
       }
     } );
@@ -160,6 +255,82 @@ public class App
         .withDescription("The XDCR concurrency - default 8")
         .create("concurrency"));
 
+    options.addOption(OptionBuilder.withArgName("cache_mb")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("Memory budget of the BOX id cache in MB - default 64")
+        .create("cache_mb"));
+
+    options.addOption(OptionBuilder.withArgName("hit_cache_mb")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("Memory budget of the query hit cache in MB - default 256")
+        .create("hit_cache_mb"));
+
+    options.addOption(OptionBuilder.withArgName("commit_docs")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("Max docs committed together by the XDCR writer - default 1000")
+        .create("commit_docs"));
+
+    options.addOption(OptionBuilder.withArgName("commit_window_ms")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("How long the XDCR writer waits for more batches to commit together - default 10")
+        .create("commit_window_ms"));
+
+    options.addOption(OptionBuilder.withArgName("commit_timeout_ms")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("How long an XDCR request waits for its commit, and shutdown for queued commits - default 60000")
+        .create("commit_timeout_ms"));
+
+    options.addOption(OptionBuilder.withArgName("ingest_threads")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("Threads parsing and covering XDCR docs - default number of cores")
+        .create("ingest_threads"));
+
+    options.addOption(OptionBuilder.withArgName("rev_cache_size")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("Number of document revisions kept in memory for revsDiff - default 1000000")
+        .create("rev_cache_size"));
+
+    options.addOption(OptionBuilder.withArgName("query_threads")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("Max threads used by all queries together - default number of cores")
+        .create("query_threads"));
+
+    options.addOption(OptionBuilder
+        .withDescription("Recompute the heatmap counts of every box before starting")
+        .create("rebuild_rollups"));
+
+    options.addOption(OptionBuilder.withArgName("replica_dir")
+        .hasArg()
+        .withType(String.class)
+        .withDescription("Serve queries from a memory mapped snapshot of the BOX tree kept in this directory - default off")
+        .create("replica_dir"));
+
+    options.addOption(OptionBuilder.withArgName("replica_delta")
+        .hasArg()
+        .withType(Number.class)
+        .withDescription("Changes laid over the snapshot before a new one is written - default 100000")
+        .create("replica_delta"));
+
+    options.addOption(OptionBuilder.withArgName("bulk_load")
+        .hasArg()
+        .withType(String.class)
+        .withDescription("Build a new neo4j_dir from this JSON lines export of documents, then exit")
+        .create("bulk_load"));
+
+    options.addOption(OptionBuilder.withArgName("bulk_key")
+        .hasArg()
+        .withType(String.class)
+        .withDescription("Field holding the document id in exported lines without meta - default _id")
+        .create("bulk_key"));
+
     return options;
   }
 }
@@ -0,0 +1,595 @@
+package com.findarecord.couchbase;
+
+import com.findarecord.neo4j.Cell;
+import com.findarecord.neo4j.EntryCover;
+import com.findarecord.neo4j.EntryIndex;
+import com.findarecord.neo4j.GeoJSONReader;
+import com.findarecord.neo4j.Rollups;
+import com.findarecord.neo4j.Settings;
+import com.findarecord.neo4j.TagDictionary;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.index.lucene.unsafe.batchinsert.LuceneBatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndex;
+import org.neo4j.unsafe.batchinsert.BatchInserterIndexProvider;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a new store from a JSON lines export of documents, without
+ * transactions, for when replaying everything through XDCR takes too long.
+ *
+ * Each line is either a document as bulkDocs receives it, with "meta" and
+ * "json", or the bare document with its id in the key field. Lines are
+ * decoded and covered on a pool, in chunks, and written in order by one
+ * thread through the batch inserter. BOX nodes, links and their legacy
+ * indexes are created the first time a cell is seen, parents first, so the
+ * tree ends up the same as when the entries are indexed one by one. The
+ * rollups of every box are kept in primitive arrays and written once every
+ * entry is in, and ROOT is marked as having complete summaries.
+ *
+ * Ids are expected to be unique, as in an export of a bucket. If one is
+ * seen again, the first line with it wins.
+ */
+public class BulkLoader {
+
+  //docs decoded by one task
+  private final static int CHUNK_DOCS = 1000;
+
+  //entries between progress messages
+  private final static int LOG_EVERY = 1000000;
+
+  private final static Label ENTRY = DynamicLabel.label("Entry");
+  private final static Label TAG = DynamicLabel.label("Tag");
+  private final static RelationshipType BOX_LINK = DynamicRelationshipType.withName(Settings.NEO_BOX_LINK);
+  private final static RelationshipType BOX_INTERSECT = DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT);
+
+  private ObjectMapper mapper = new ObjectMapper();
+
+  private Logger logger;
+
+  private String storeDir;
+
+  private String keyField;
+
+  private int threads;
+
+  private BatchInserter inserter;
+
+  private BatchInserterIndex entryIndex;
+
+  private BatchInserterIndex tagIndex;
+
+  private long rootId;
+
+  private BatchInserterIndex boxIndex;
+
+  private BatchInserterIndex linkIndex;
+
+  //every box written so far, by cell
+  private BoxTable boxes = new BoxTable();
+
+  private LinkedHashMap<String, Integer> tagCodes = new LinkedHashMap<>();
+
+  private EntryIds entryIds = new EntryIds();
+
+  private long loaded;
+
+  private long skipped;
+
+  public BulkLoader(String storeDir, String keyField, int threads, Logger logger) {
+    this.storeDir = storeDir;
+    this.keyField = keyField;
+    this.threads = threads;
+    this.logger = logger;
+  }
+
+  /**
+   * Load every document of the export into the store, which must not exist yet.
+   */
+  public void load(File export) throws IOException {
+    if(new File(storeDir, "neostore").exists()) {
+      throw new IOException("Bulk load needs an empty store, " + storeDir + " already has one");
+    }
+
+    inserter = BatchInserters.inserter(storeDir);
+    BatchInserterIndexProvider indexProvider = new LuceneBatchInserterIndexProvider(inserter);
+    try {
+      Map<String, String> exact = MapUtil.stringMap("type", "exact");
+      entryIndex = indexProvider.nodeIndex(Settings.NEO_ENTRY, exact);
+      tagIndex = indexProvider.nodeIndex(Settings.NEO_TAG, exact);
+      boxIndex = indexProvider.nodeIndex(Settings.NEO_BOX, exact);
+      linkIndex = indexProvider.relationshipIndex(Settings.NEO_BOX_LINK_INDEX, exact);
+
+      rootId = inserter.createNode(MapUtil.map("id", 0));
+      indexProvider.nodeIndex(Settings.NEO_ROOT, exact).add(rootId, MapUtil.map("id", 0));
+
+      readAll(export);
+
+      logger.info("Loaded " + loaded + " entries, skipped " + skipped + " docs, writing " + boxes.size() + " boxes");
+      writeBoxes();
+
+      //everything below ROOT was counted from scratch, so its summaries are complete
+      inserter.setNodeProperty(rootId, "nextTagCode", tagCodes.size());
+      inserter.setNodeProperty(rootId, "rollupVersion", 1L);
+      inserter.setNodeProperty(rootId, "temporalSummaries", true);
+      inserter.setNodeProperty(rootId, "tagSummaries", true);
+    } finally {
+      indexProvider.shutdown();
+      inserter.shutdown();
+    }
+  }
+
+  private void readAll(File export) throws IOException {
+    ForkJoinPool decoders = new ForkJoinPool(threads);
+    //chunks being decoded, written in the order they were read
+    ArrayDeque<Future<List<IndexDoc>>> pending = new ArrayDeque<>();
+
+    try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(export), StandardCharsets.UTF_8))) {
+      List<String> chunk = new ArrayList<>(CHUNK_DOCS);
+      String line;
+      while((line = reader.readLine()) != null) {
+        if(line.trim().isEmpty()) {
+          continue;
+        }
+        chunk.add(line);
+        if(chunk.size() == CHUNK_DOCS) {
+          pending.add(decoders.submit(decodeTask(chunk)));
+          chunk = new ArrayList<>(CHUNK_DOCS);
+          //keep every thread busy without reading the whole export ahead
+          if(pending.size() >= 2 * threads) {
+            writeAll(pending.poll());
+          }
+        }
+      }
+      if(!chunk.isEmpty()) {
+        pending.add(decoders.submit(decodeTask(chunk)));
+      }
+      while(!pending.isEmpty()) {
+        writeAll(pending.poll());
+      }
+    } finally {
+      decoders.shutdownNow();
+    }
+  }
+
+  private Callable<List<IndexDoc>> decodeTask(final List<String> lines) {
+    return new Callable<List<IndexDoc>>() {
+      @Override
+      public List<IndexDoc> call() {
+        List<IndexDoc> docs = new ArrayList<>(lines.size());
+        for(String line : lines) {
+          docs.add(decode(line));
+        }
+        return docs;
+      }
+    };
+  }
+
+  /**
+   * Turn a line of the export into an entry with its cover computed, or
+   * null if there is nothing to index.
+   */
+  private IndexDoc decode(String line) {
+    Map<String, Object> doc;
+    try {
+      doc = (Map<String, Object>) mapper.readValue(line, Map.class);
+    } catch (IOException e) {
+      logger.error("Unable to parse line, ignoring: " + e.getMessage());
+      return null;
+    }
+
+    String id;
+    String rev = null;
+    Map<String, Object> json;
+    Object meta = doc.get("meta");
+    if(meta instanceof Map) {
+      id = (String) ((Map<String, Object>) meta).get("id");
+      rev = (String) ((Map<String, Object>) meta).get("rev");
+      json = doc.get("json") instanceof Map ? (Map<String, Object>) doc.get("json") : null;
+      if(Boolean.TRUE.equals(((Map<String, Object>) meta).get("deleted"))) {
+        return null;
+      }
+    } else {
+      id = (String) doc.get(keyField);
+      json = doc;
+    }
+
+    if(id == null || id.startsWith("_local/") || json == null) {
+      return null;
+    }
+
+    //written as is, so anything the XDCR path would fail on is left out here
+    Object geojson = json.get("geojson");
+    if(!(geojson instanceof Map) || !(json.get("collection_id") instanceof String)
+        || !(json.get("from") instanceof Integer) || !(json.get("to") instanceof Integer) || !(json.get("tags") instanceof List)) {
+      logger.warn("Document without collection_id, from, to, tags or geojson, ignoring id: " + id);
+      return null;
+    }
+
+    EntryCover cover = EntryIndex.cover((Map<String, Object>) geojson);
+    if(cover == null) {
+      logger.error("Unable to parse geojson, ignoring id: " + id);
+      return null;
+    }
+    cover.compute();
+
+    return IndexDoc.entry(
+        id,
+        rev,
+        (String) json.get("collection_id"),
+        (Integer) json.get("from"),
+        (Integer) json.get("to"),
+        new ArrayList<String>((List<String>) json.get("tags")),
+        cover);
+  }
+
+  private void writeAll(Future<List<IndexDoc>> chunk) throws IOException {
+    List<IndexDoc> docs;
+    try {
+      docs = chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted decoding export", e);
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Unable to decode export", e.getCause());
+    }
+
+    for(IndexDoc doc : docs) {
+      if(doc == null) {
+        skipped++;
+      } else if(!writeEntry(doc)) {
+        logger.warn("Id seen before, ignoring: " + doc.getId());
+        skipped++;
+      } else if(++loaded % LOG_EVERY == 0) {
+        logger.info("Loaded " + loaded + " entries, " + boxes.size() + " boxes");
+      }
+    }
+  }
+
+  /**
+   * Write an entry, its links and its share of the rollups, false if its id
+   * was written before.
+   */
+  private boolean writeEntry(IndexDoc doc) {
+    long hash = GeoJSONReader.hash(doc.getId());
+    if(entryIds.contains(hash, doc.getId())) {
+      return false;
+    }
+
+    EntryCover cover = doc.getCover();
+    ArrayList<String> tags = doc.getTags();
+    int[] codes = getCodes(tags);
+
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("id", doc.getId());
+    properties.put("collection_id", doc.getCollectionId());
+    properties.put("from", doc.getFrom());
+    properties.put("to", doc.getTo());
+    properties.put("tags", tags.toArray(new String[tags.size()]));
+    properties.put("tagCodes", codes);
+    if(doc.getRev() != null) {
+      properties.put("rev", doc.getRev());
+    }
+    properties.put("lons", cover.getLons());
+    properties.put("lats", cover.getLats());
+    properties.put("cells", cover.getCells());
+    properties.put("geoHash", cover.getGeoHash());
+
+    long entry = inserter.createNode(properties, ENTRY);
+    entryIds.add(hash, entry);
+    entryIndex.add(entry, MapUtil.map("id", doc.getId()));
+
+    Map<String, Object> link = MapUtil.map("collection_id", doc.getCollectionId());
+    for(long cell : cover.getCells()) {
+      inserter.createRelationship(boxes.getNode(getBox(cell)), entry, BOX_INTERSECT, link);
+    }
+
+    for(long cell : Rollups.closure(cover.getCells())) {
+      boxes.add(getBox(cell), doc.getFrom(), doc.getTo(), codes);
+    }
+    return true;
+  }
+
+  //slot of the box of a cell, creating it and its missing parents
+  private int getBox(long cell) {
+    int slot = boxes.find(cell);
+    if(slot >= 0) {
+      return slot;
+    }
+
+    //parents first, like BoxWriter
+    long parent = Cell.level(cell) == 0 ? rootId : boxes.getNode(getBox(Cell.parent(cell)));
+    String nodeId = Cell.nodeId(cell);
+    long node = inserter.createNode(MapUtil.map("id", nodeId));
+    boxIndex.add(node, MapUtil.map("id", nodeId));
+
+    //links are unique by the cell's own id, so only the first box with that
+    //corner gets one, which is the one whose parent has a different corner
+    if(Cell.level(cell) == 0 || !sameCorner(cell, Cell.parent(cell))) {
+      Map<String, Object> bounds = new HashMap<>();
+      bounds.put("minLon", Cell.minLon(cell));
+      bounds.put("maxLon", Cell.maxLon(cell));
+      bounds.put("minLat", Cell.minLat(cell));
+      bounds.put("maxLat", Cell.maxLat(cell));
+      long rel = inserter.createRelationship(node, parent, BOX_LINK, bounds);
+      linkIndex.add(rel, MapUtil.map("id", Cell.id(cell)));
+    }
+
+    return boxes.insert(cell, node);
+  }
+
+  private static boolean sameCorner(long a, long b) {
+    return Cell.lon(a) == Cell.lon(b) && Cell.lat(a) == Cell.lat(b);
+  }
+
+  //sorted codes of the tags, creating the Tag nodes of new ones
+  private int[] getCodes(List<String> tags) {
+    BitSet found = new BitSet();
+    for(String tag : tags) {
+      Integer code = tagCodes.get(tag);
+      if(code == null) {
+        code = tagCodes.size();
+        tagCodes.put(tag, code);
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("tag", tag);
+        properties.put("code", code);
+        tagIndex.add(inserter.createNode(properties, TAG), MapUtil.map("tag", tag));
+      }
+      found.set(code);
+    }
+    return TagDictionary.toArray(found);
+  }
+
+  private void writeBoxes() {
+    //in cell order, so each level is written in one sweep
+    long[] cells = boxes.getCells();
+    Arrays.sort(cells);
+
+    long now = System.currentTimeMillis() / 1000l;
+    for(long cell : cells) {
+      int slot = boxes.find(cell);
+      long node = boxes.getNode(slot);
+
+      //added one by one, setNodeProperties would rewrite the id as well
+      inserter.setNodeProperty(node, "count", boxes.getCount(slot));
+      inserter.setNodeProperty(node, "lastUpdated", now);
+      inserter.setNodeProperty(node, "minFrom", boxes.getMinFrom(slot));
+      inserter.setNodeProperty(node, "maxTo", boxes.getMaxTo(slot));
+      inserter.setNodeProperty(node, "tagCodes", boxes.getTagCodes(slot));
+    }
+  }
+
+  /**
+   * BOX nodes written so far and the rollups of the entries below them, by
+   * cell. An open addressed table of primitive arrays, as an object, a boxed
+   * key and a BitSet per box would not fit for the tens of millions of boxes
+   * a big export touches. Tags take as many longs per box as the highest
+   * code needs. Slots move when the table grows, so a slot is only good
+   * until the next insert.
+   */
+  private static class BoxTable {
+
+    //cell + 1 of each slot, 0 if free, as cell 0 is a real one
+    private long[] keys = new long[1 << 16];
+
+    private long[] nodes = new long[1 << 16];
+
+    private int[] counts = new int[1 << 16];
+
+    private int[] minFroms = new int[1 << 16];
+
+    private int[] maxTos = new int[1 << 16];
+
+    private int tagWords = 1;
+
+    private long[] tags = new long[1 << 16];
+
+    private int size;
+
+    private int size() {
+      return size;
+    }
+
+    private int find(long cell) {
+      int mask = keys.length - 1;
+      for(int i = slot(cell + 1, mask); keys[i] != 0; i = (i + 1) & mask) {
+        if(keys[i] == cell + 1) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    //slot of a new box, which must not be in the table yet
+    private int insert(long cell, long node) {
+      if(4 * (size + 1) > 3 * keys.length) {
+        grow();
+      }
+      int slot = free(cell + 1);
+      keys[slot] = cell + 1;
+      nodes[slot] = node;
+      minFroms[slot] = Integer.MAX_VALUE;
+      maxTos[slot] = Integer.MIN_VALUE;
+      size++;
+      return slot;
+    }
+
+    private void add(int slot, int from, int to, int[] codes) {
+      counts[slot]++;
+      minFroms[slot] = Math.min(minFroms[slot], from);
+      maxTos[slot] = Math.max(maxTos[slot], to);
+      for(int code : codes) {
+        if(code >= 64 * tagWords) {
+          widenTags(code / 64 + 1);
+        }
+        tags[slot * tagWords + code / 64] |= 1L << (code % 64);
+      }
+    }
+
+    private long getNode(int slot) {
+      return nodes[slot];
+    }
+
+    private int getCount(int slot) {
+      return counts[slot];
+    }
+
+    private int getMinFrom(int slot) {
+      return minFroms[slot];
+    }
+
+    private int getMaxTo(int slot) {
+      return maxTos[slot];
+    }
+
+    private int[] getTagCodes(int slot) {
+      return TagDictionary.toArray(BitSet.valueOf(Arrays.copyOfRange(tags, slot * tagWords, (slot + 1) * tagWords)));
+    }
+
+    private long[] getCells() {
+      long[] cells = new long[size];
+      int i = 0;
+      for(long key : keys) {
+        if(key != 0) {
+          cells[i++] = key - 1;
+        }
+      }
+      return cells;
+    }
+
+    private static int slot(long key, int mask) {
+      //cells of a level are spread over the low bits, so mix them first
+      return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private int free(long key) {
+      int mask = keys.length - 1;
+      int i = slot(key, mask);
+      while(keys[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      return i;
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      long[] oldNodes = nodes;
+      int[] oldCounts = counts;
+      int[] oldMinFroms = minFroms;
+      int[] oldMaxTos = maxTos;
+      long[] oldTags = tags;
+      int capacity = oldKeys.length * 2;
+      keys = new long[capacity];
+      nodes = new long[capacity];
+      counts = new int[capacity];
+      minFroms = new int[capacity];
+      maxTos = new int[capacity];
+      tags = new long[capacity * tagWords];
+      for(int i = 0; i < oldKeys.length; i++) {
+        if(oldKeys[i] != 0) {
+          int slot = free(oldKeys[i]);
+          keys[slot] = oldKeys[i];
+          nodes[slot] = oldNodes[i];
+          counts[slot] = oldCounts[i];
+          minFroms[slot] = oldMinFroms[i];
+          maxTos[slot] = oldMaxTos[i];
+          System.arraycopy(oldTags, i * tagWords, tags, slot * tagWords, tagWords);
+        }
+      }
+    }
+
+    //room for words longs of tags per box
+    private void widenTags(int words) {
+      long[] wider = new long[keys.length * words];
+      for(int i = 0; i < keys.length; i++) {
+        System.arraycopy(tags, i * tagWords, wider, i * words, tagWords);
+      }
+      tags = wider;
+      tagWords = words;
+    }
+  }
+
+  /**
+   * Node ids of the entries written so far, by a 64 bit hash of their id.
+   * An open addressed table of two long arrays, as a map of strings would
+   * not fit for tens of millions of entries. Ids whose hash is in the
+   * table are compared against the stored node, so collisions are exact.
+   */
+  private class EntryIds {
+
+    private long[] hashes = new long[1 << 16];
+
+    private long[] nodes = new long[1 << 16];
+
+    private int size;
+
+    private boolean contains(long hash, String id) {
+      hash = hash == 0 ? 1 : hash;
+      int mask = hashes.length - 1;
+      for(int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+        if(hashes[i] == hash && id.equals(inserter.getNodeProperties(nodes[i]).get("id"))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private void add(long hash, long node) {
+      if(4 * (size + 1) > 3 * hashes.length) {
+        grow();
+      }
+      put(hash == 0 ? 1 : hash, node);
+      size++;
+    }
+
+    private void put(long hash, long node) {
+      int mask = hashes.length - 1;
+      int i = (int) hash & mask;
+      while(hashes[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      hashes[i] = hash;
+      nodes[i] = node;
+    }
+
+    private void grow() {
+      long[] oldHashes = hashes;
+      long[] oldNodes = nodes;
+      hashes = new long[oldHashes.length * 2];
+      nodes = new long[oldNodes.length * 2];
+      for(int i = 0; i < oldHashes.length; i++) {
+        if(oldHashes[i] != 0) {
+          put(oldHashes[i], oldNodes[i]);
+        }
+      }
+    }
+  }
+}
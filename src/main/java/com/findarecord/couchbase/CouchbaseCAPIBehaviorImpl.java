@@ -2,19 +2,26 @@ package com.findarecord.couchbase;
 
 import com.couchbase.capi.CAPIBehavior;
 
-import com.findarecord.neo4j.EntryDelete;
+import com.findarecord.neo4j.BoxCache;
+import com.findarecord.neo4j.CheckpointStore;
+import com.findarecord.neo4j.EntryCover;
 import com.findarecord.neo4j.EntryIndex;
+import com.findarecord.neo4j.RevisionStore;
+import com.findarecord.neo4j.TagDictionary;
 import org.apache.commons.codec.binary.Base64;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.apache.log4j.Logger;
 import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.Transaction;
 
 import javax.servlet.UnavailableException;
 
 import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
 
 public class CouchbaseCAPIBehaviorImpl implements CAPIBehavior {
@@ -25,10 +32,31 @@ public class CouchbaseCAPIBehaviorImpl implements CAPIBehavior {
 
   private GraphDatabaseService graphDb;
 
-  public CouchbaseCAPIBehaviorImpl(int maxConcurrentRequests, Logger logger, GraphDatabaseService graphDb) {
+  private GroupCommitWriter writer;
+
+  private ForkJoinPool decoders;
+
+  private RevisionStore revisionStore;
+
+  private CheckpointStore checkpointStore;
+
+  public CouchbaseCAPIBehaviorImpl(int maxConcurrentRequests, Logger logger, GraphDatabaseService graphDb, BoxCache boxCache, TagDictionary tagDictionary, int commitDocs, long commitWindowMillis, long commitTimeoutMillis, int decodeThreads, int revisionCacheSize) {
     this.activeRequests = new Semaphore(maxConcurrentRequests);
     this.logger = logger;
     this.graphDb = graphDb;
+    this.decoders = new ForkJoinPool(decodeThreads);
+    this.revisionStore = new RevisionStore(graphDb, revisionCacheSize);
+    this.checkpointStore = new CheckpointStore(graphDb);
+    this.writer = new GroupCommitWriter(graphDb, boxCache, tagDictionary, logger, commitDocs, commitWindowMillis, commitTimeoutMillis);
+    this.writer.start();
+  }
+
+  /**
+   * Commit what the writer has queued and stop it, before the graph shuts down.
+   */
+  public void shutdown() {
+    writer.shutdown();
+    decoders.shutdown();
   }
 
   @Override
@@ -60,17 +88,29 @@ public class CouchbaseCAPIBehaviorImpl implements CAPIBehavior {
 
   @Override
   public boolean ensureFullCommit(String database) {
+    try {
+      writer.flush();
+    } catch (UnavailableException e) {
+      logger.error("Unable to flush pending writes", e);
+      return false;
+    }
     return true;
   }
 
   @Override
   public Map<String, Object> revsDiff(String database, Map<String, Object> revsMap) throws UnavailableException {
 
-    // start with all entries in the response map
+    // look up the revisions we already applied in one go
+    Map<String, String> applied = revisionStore.getRevisions(revsMap.keySet());
+
+    // only report the revisions we haven't applied yet
     Map<String, Object> responseMap = new HashMap<>();
     for (Entry<String, Object> entry : revsMap.entrySet()) {
       String id = entry.getKey();
       String revs = (String)entry.getValue();
+      if(revs != null && revs.equals(applied.get(id))) {
+        continue;
+      }
       Map<String, String> rev = new HashMap<>();
       rev.put("missing", revs);
       responseMap.put(id, rev);
@@ -87,102 +127,181 @@ public class CouchbaseCAPIBehaviorImpl implements CAPIBehavior {
       throw new UnavailableException("Too many concurrent requests");
     }
 
-    List<Object> result = new ArrayList<>();
-
-    try ( Transaction tx = graphDb.beginTx() ) {
+    try {
+      List<Object> result = new ArrayList<>();
+      List<IndexDoc> writes = new ArrayList<>();
+      Map<String, String> revisions = new HashMap<>();
+      Map<String, Map<String, Object>> checkpoints = new LinkedHashMap<>();
 
+      //every doc with a revision is applied once the batch commits, even if there was nothing to index
       for (Map<String, Object> doc : docs) {
-
-        // these are the top-level elements that could be in the document sent by Couchbase
         Map<String, Object> meta = (Map<String, Object>)doc.get("meta");
-        Map<String, Object> json = (Map<String, Object>)doc.get("json");
-        String base64 = (String)doc.get("base64");
-
-        if(meta == null) {
-          // if there is no meta-data section, there is nothing we can do
-          logger.warn("Document without meta in bulk_docs, ignoring....");
+        if(meta == null || meta.get("id") == null) {
           continue;
-        } else {
-          if ("non-JSON mode".equals(meta.get("att_reason"))) {
-            // optimization, this tells us the body isn't json
-            json = new HashMap<>();
-          } else {
-            if (json == null && base64 != null) {
-              // no plain json, let's try parsing the base64 data
-              byte[] decodedData = Base64.decodeBase64(base64);
-              try {
-                // now try to parse the decoded data as json
-                json = (Map<String, Object>) mapper.readValue(decodedData, Map.class);
-              } catch (IOException e) {
-                logger.error("Unable to parse decoded base64 data as JSON, indexing stub for id: " + meta.get("id"));
-                logger.error("Body was: " + new String(decodedData) + " Parse error was: " + e);
-                json = new HashMap<>();
-
-              }
-            }
-          }
         }
-
-        // at this point we know we have the document meta-data
-        // and the document contents to be indexed are in json
-
         String id = (String)meta.get("id");
-        //String rev = (String)meta.get("rev");
-
-        //ignore checkpoint requests
         if(id.startsWith("_local/")) {
-          continue;
+          checkpoints.put(id, checkpointBody(doc));
+        } else {
+          revisions.put(id, (String)meta.get("rev"));
         }
+      }
 
-        boolean deleted = meta.containsKey("deleted") ? (Boolean)meta.get("deleted") : false;
+      //parsing and cover computation happen in parallel, outside of any transaction
+      Map<String, Long> geoHashes = EntryIndex.getGeoHashes(graphDb, revisions.keySet());
+      for (IndexDoc write : decodeAll(docs, geoHashes)) {
+        if(write == null) {
+          continue;
+        }
+        writes.add(write);
 
-        if(deleted) {
-          //instantiate entry index
-          EntryDelete idx = new EntryDelete(graphDb);
+        Map<String, Object> itemResponse = new HashMap<>();
+        itemResponse.put("id", write.getId());
+        itemResponse.put("rev", null); //not sure why null works here...
+        result.add(itemResponse);
+      }
 
-          //delete entry
-          idx.deleteEntry(id);
+      //returns once the group holding these docs has committed
+      writer.write(writes);
+      revisionStore.remember(revisions);
 
-        } else {
-          Object geojsonObject = json.get("geojson");
-          //if geojson is null, continue
-          if(geojsonObject == null) {
-            //System.out.println("Found null in "+id);
-            continue;
-          }
+      //checkpoints go in after the docs before them are committed
+      for (Map.Entry<String, Map<String, Object>> checkpoint : checkpoints.entrySet()) {
+        checkpointStore.store(database, checkpoint.getKey(), checkpoint.getValue());
+      }
 
-          //instantiate entry index
-          EntryIndex idx = new EntryIndex(graphDb);
+      return result;
+    } finally {
+      activeRequests.release();
+    }
+  }
 
-          //index entry
+  /**
+   * Turn a document sent by Couchbase into a write, or null if there is nothing to index.
+   * geoHashes holds the stored geoHash of existing entries, whose cover is
+   * only computed if their geojson changed.
+   */
+  protected IndexDoc decode(Map<String, Object> doc, Map<String, Long> geoHashes) {
+
+    // these are the top-level elements that could be in the document sent by Couchbase
+    Map<String, Object> meta = (Map<String, Object>)doc.get("meta");
+    Map<String, Object> json = (Map<String, Object>)doc.get("json");
+    String base64 = (String)doc.get("base64");
+
+    if(meta == null) {
+      // if there is no meta-data section, there is nothing we can do
+      logger.warn("Document without meta in bulk_docs, ignoring....");
+      return null;
+    } else {
+      if ("non-JSON mode".equals(meta.get("att_reason"))) {
+        // optimization, this tells us the body isn't json
+        json = new HashMap<>();
+      } else {
+        if (json == null && base64 != null) {
+          // no plain json, let's try parsing the base64 data
+          byte[] decodedData = Base64.decodeBase64(base64);
           try {
-            result.add(idx.indexEntry(
-                id,
-                (String) json.get("collection_id"),
-                (Integer) json.get("from"),
-                (Integer) json.get("to"),
-                (ArrayList<String>) json.get("tags"),
-                mapper.writeValueAsString(geojsonObject)));
-            tx.success();
+            // now try to parse the decoded data as json
+            json = (Map<String, Object>) mapper.readValue(decodedData, Map.class);
           } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("Unable to parse decoded base64 data as JSON, indexing stub for id: " + meta.get("id"));
+            logger.error("Body was: " + new String(decodedData) + " Parse error was: " + e);
+            json = new HashMap<>();
+
           }
         }
+      }
+    }
 
-        // TODO only add response if we actually saved things
-        Map<String, Object> itemResponse = new HashMap<>();
-        itemResponse.put("id", id);
-        itemResponse.put("rev", null); //not sure why null works here...
-        result.add(itemResponse);
+    // at this point we know we have the document meta-data
+    // and the document contents to be indexed are in json
 
-      }
+    String id = (String)meta.get("id");
+    String rev = (String)meta.get("rev");
+
+    //ignore checkpoint requests
+    if(id.startsWith("_local/")) {
+      return null;
+    }
+
+    boolean deleted = meta.containsKey("deleted") ? (Boolean)meta.get("deleted") : false;
+
+    if(deleted) {
+      return IndexDoc.deleted(id, rev);
+    }
+
+    Object geojsonObject = json.get("geojson");
+    //if geojson is null, there is nothing to index
+    if(geojsonObject == null) {
+      return null;
+    }
+
+    //build the geometry straight from the parsed tree
+    EntryCover cover = null;
+    if(geojsonObject instanceof Map) {
+      cover = EntryIndex.cover((Map<String, Object>) geojsonObject);
+    }
+    if(cover == null) {
+      logger.error("Unable to parse geojson, ignoring id: " + id);
+      return null;
+    }
 
-      tx.success();
+    Long storedHash = geoHashes.get(id);
+    if(storedHash == null || storedHash != cover.getGeoHash()) {
+      cover.compute();
     }
 
-    activeRequests.release();
+    return IndexDoc.entry(
+        id,
+        rev,
+        (String) json.get("collection_id"),
+        (Integer) json.get("from"),
+        (Integer) json.get("to"),
+        (ArrayList<String>) json.get("tags"),
+        cover);
+  }
 
-    return result;
+  private Map<String, Object> checkpointBody(Map<String, Object> doc) {
+    Map<String, Object> json = (Map<String, Object>)doc.get("json");
+    String base64 = (String)doc.get("base64");
+    if (json == null && base64 != null) {
+      try {
+        json = (Map<String, Object>) mapper.readValue(Base64.decodeBase64(base64), Map.class);
+      } catch (IOException e) {
+        logger.error("Unable to parse checkpoint document: " + e);
+      }
+    }
+    return json == null ? new HashMap<String, Object>() : json;
+  }
+
+  /**
+   * Decode all docs of a batch on the decoder pool, keeping their order.
+   */
+  protected List<IndexDoc> decodeAll(List<Map<String, Object>> docs, final Map<String, Long> geoHashes) throws UnavailableException {
+    List<Callable<IndexDoc>> tasks = new ArrayList<>(docs.size());
+    for (final Map<String, Object> doc : docs) {
+      tasks.add(new Callable<IndexDoc>() {
+        @Override
+        public IndexDoc call() {
+          return decode(doc, geoHashes);
+        }
+      });
+    }
+
+    List<IndexDoc> decoded = new ArrayList<>(docs.size());
+    try {
+      for (Future<IndexDoc> future : decoders.invokeAll(tasks)) {
+        decoded.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      throw new UnavailableException("Interrupted decoding batch");
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new UnavailableException("Unable to decode batch: " + e.getCause());
+    }
+    return decoded;
   }
 
   @Override
@@ -192,7 +311,7 @@ public class CouchbaseCAPIBehaviorImpl implements CAPIBehavior {
 
   @Override
   public Map<String, Object> getLocalDocument(String database, String docId) {
-    return null;
+    return checkpointStore.get(database, docId);
   }
 
   @Override
@@ -202,7 +321,7 @@ public class CouchbaseCAPIBehaviorImpl implements CAPIBehavior {
 
   @Override
   public String storeLocalDocument(String database, String docId, Map<String, Object> document) {
-    return null;
+    return checkpointStore.store(database, docId, document);
   }
 
   @Override
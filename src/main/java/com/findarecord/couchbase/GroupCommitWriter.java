@@ -0,0 +1,266 @@
+package com.findarecord.couchbase;
+
+import com.findarecord.neo4j.BoxCache;
+import com.findarecord.neo4j.EntryIndex;
+import com.findarecord.neo4j.TagDictionary;
+import org.apache.log4j.Logger;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import javax.servlet.UnavailableException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer that commits concurrent bulkDocs batches together.
+ *
+ * Queued batches are coalesced until the group holds maxDocs documents or
+ * windowMillis has passed, then written in one transaction. Only the last
+ * version of a document in a group is written. Callers are released once
+ * that transaction has committed, or with an error once it has failed or
+ * timeoutMillis has passed.
+ */
+public class GroupCommitWriter implements Runnable {
+
+  private GraphDatabaseService graphDb;
+
+  private BoxCache boxCache;
+
+  private TagDictionary tagDictionary;
+
+  private Logger logger;
+
+  private int maxDocs;
+
+  private long windowMillis;
+
+  private long timeoutMillis;
+
+  private LinkedBlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+
+  private Thread thread;
+
+  private volatile boolean stopped = false;
+
+  //queued by shutdown, the writer exits once it has committed everything before it
+  private final Batch stop = new Batch(Collections.<IndexDoc>emptyList());
+
+  public GroupCommitWriter(GraphDatabaseService graphDb, BoxCache boxCache, TagDictionary tagDictionary, Logger logger, int maxDocs, long windowMillis, long timeoutMillis) {
+    this.graphDb = graphDb;
+    this.boxCache = boxCache;
+    this.tagDictionary = tagDictionary;
+    this.logger = logger;
+    this.maxDocs = maxDocs;
+    this.windowMillis = windowMillis;
+    this.timeoutMillis = timeoutMillis;
+    this.thread = new Thread(this, "group-commit-writer");
+    this.thread.setDaemon(true);
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  /**
+   * Stop taking batches and wait up to timeoutMillis for the writer to
+   * commit the ones already queued. Anything still queued after that is
+   * failed, so no caller is left waiting.
+   */
+  public void shutdown() {
+    stopped = true;
+    queue.add(stop);
+
+    try {
+      thread.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if(thread.isAlive()) {
+      logger.warn("Group commit writer still busy after " + timeoutMillis + "ms, giving up on " + queue.size() + " queued batches");
+    }
+
+    RuntimeException error = new IllegalStateException("Writer is shut down");
+    for(Batch batch = queue.poll(); batch != null; batch = queue.poll()) {
+      batch.finish(error);
+    }
+  }
+
+  /**
+   * Queue docs for the next group and wait until they are committed.
+   */
+  public void write(List<IndexDoc> docs) throws UnavailableException {
+    if(docs.isEmpty()) {
+      return;
+    }
+
+    Batch batch = await(new Batch(docs));
+
+    if(batch.error != null) {
+      logger.error("Unable to commit batch of " + docs.size() + " docs", batch.error);
+      throw new UnavailableException("Unable to commit batch: " + batch.error.getMessage());
+    }
+  }
+
+  /**
+   * Wait until everything queued before this call has been committed.
+   */
+  public void flush() throws UnavailableException {
+    await(new Batch(Collections.<IndexDoc>emptyList()));
+  }
+
+  private Batch await(Batch batch) throws UnavailableException {
+    if(stopped) {
+      throw new UnavailableException("Writer is shut down");
+    }
+
+    queue.add(batch);
+
+    try {
+      if(!batch.done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new UnavailableException("Timed out waiting for commit");
+      }
+    } catch (InterruptedException e) {
+      throw new UnavailableException("Interrupted waiting for commit");
+    }
+
+    return batch;
+  }
+
+  @Override
+  public void run() {
+    while(true) {
+      List<Batch> group;
+      try {
+        group = nextGroup();
+      } catch (InterruptedException e) {
+        return;
+      } catch (Throwable e) {
+        //batches taken before this are released by their callers' timeout
+        logger.error("Unable to gather next group", e);
+        continue;
+      }
+
+      commit(group);
+
+      if(group.get(group.size() - 1) == stop) {
+        return;
+      }
+    }
+  }
+
+  private List<Batch> nextGroup() throws InterruptedException {
+    List<Batch> group = new ArrayList<>();
+
+    Batch batch = queue.take();
+    group.add(batch);
+    int docs = batch.docs.size();
+
+    //keep taking batches until the group is full or the window closes
+    long deadline = System.currentTimeMillis() + windowMillis;
+    while(docs < maxDocs) {
+      batch = queue.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+      if(batch == null) {
+        break;
+      }
+      group.add(batch);
+      docs += batch.docs.size();
+      if(batch == stop) {
+        break;
+      }
+    }
+
+    return group;
+  }
+
+  private void commit(List<Batch> group) {
+    Throwable error = null;
+    try {
+      apply(group);
+    } catch (Throwable e) {
+      error = e;
+      if(group.size() > 1) {
+        //retry batches on their own so one bad batch doesn't fail the others
+        logger.warn("Group of " + group.size() + " batches failed, committing them one by one", e);
+        for(Batch batch : group) {
+          commit(Collections.singletonList(batch));
+        }
+      }
+    } finally {
+      //every caller is released, even if an Error escaped; retried batches keep their own outcome
+      for(Batch batch : group) {
+        batch.finish(error);
+      }
+    }
+  }
+
+  private void apply(List<Batch> group) {
+    if(group.size() == 1 && group.get(0).docs.isEmpty()) {
+      return;
+    }
+
+    //keep only the last version of each doc
+    LinkedHashMap<String, IndexDoc> latest = new LinkedHashMap<>();
+    for(Batch batch : group) {
+      for(IndexDoc doc : batch.docs) {
+        latest.remove(doc.getId());
+        latest.put(doc.getId(), doc);
+      }
+    }
+
+    EntryIndex entryIndex;
+
+    try ( Transaction tx = graphDb.beginTx() ) {
+
+      //one index per group, so boxes shared by several docs are only resolved once
+      entryIndex = new EntryIndex(graphDb, boxCache, tagDictionary);
+
+      for(IndexDoc doc : latest.values()) {
+        if(doc.isDeleted()) {
+          entryIndex.deleteEntry(doc.getId());
+        } else {
+          entryIndex.indexEntry(
+              doc.getId(),
+              doc.getCollectionId(),
+              doc.getFrom(),
+              doc.getTo(),
+              doc.getTags(),
+              doc.getCover(),
+              doc.getRev());
+        }
+      }
+
+      //rollups of the whole group go in at once
+      entryIndex.flush();
+      tx.success();
+    }
+
+    //only share the boxes we created once they are committed
+    entryIndex.commit();
+  }
+
+  private static class Batch {
+
+    private List<IndexDoc> docs;
+
+    private CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Throwable error;
+
+    private Batch(List<IndexDoc> docs) {
+      this.docs = docs;
+    }
+
+    private synchronized void finish(Throwable error) {
+      if(done.getCount() > 0) {
+        this.error = error;
+        done.countDown();
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.findarecord.couchbase;
+
+import com.findarecord.neo4j.EntryCover;
+
+import java.util.ArrayList;
+
+/**
+ * A decoded document from a bulkDocs batch, ready to be written. Its
+ * cover is already computed unless its geometry looked unchanged.
+ */
+public class IndexDoc {
+
+  private String id;
+
+  private String rev;
+
+  private boolean deleted;
+
+  private String collectionId;
+
+  private Integer from;
+
+  private Integer to;
+
+  private ArrayList<String> tags;
+
+  private EntryCover cover;
+
+  public static IndexDoc deleted(String id, String rev) {
+    IndexDoc doc = new IndexDoc(id, rev);
+    doc.deleted = true;
+    return doc;
+  }
+
+  public static IndexDoc entry(String id, String rev, String collectionId, Integer from, Integer to, ArrayList<String> tags, EntryCover cover) {
+    IndexDoc doc = new IndexDoc(id, rev);
+    doc.collectionId = collectionId;
+    doc.from = from;
+    doc.to = to;
+    doc.tags = tags;
+    doc.cover = cover;
+    return doc;
+  }
+
+  private IndexDoc(String id, String rev) {
+    this.id = id;
+    this.rev = rev;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getRev() {
+    return rev;
+  }
+
+  public boolean isDeleted() {
+    return deleted;
+  }
+
+  public String getCollectionId() {
+    return collectionId;
+  }
+
+  public Integer getFrom() {
+    return from;
+  }
+
+  public Integer getTo() {
+    return to;
+  }
+
+  public ArrayList<String> getTags() {
+    return tags;
+  }
+
+  public EntryCover getCover() {
+    return cover;
+  }
+}
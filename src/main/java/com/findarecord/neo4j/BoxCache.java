@@ -0,0 +1,146 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.index.UniqueFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of Neo4j ids in the BOX hierarchy, shared across requests.
+ *
+ * Maps cells to BOX node ids and BOX_LINK keys to relationship ids, and
+ * remembers the ROOT node id. Only ids of committed entities may be put
+ * here, so a rolled back transaction never leaves ids behind.
+ */
+public class BoxCache {
+
+  //rough heap cost of an entry: map entry, boxed key and boxed value
+  private final static int ENTRY_BYTES = 88;
+
+  private final long budgetBytes;
+
+  private long usedBytes = 0;
+
+  //keys are Long cells or String link keys, in access order
+  private final LinkedHashMap<Object, Long> ids = new LinkedHashMap<>(1024, 0.75f, true);
+
+  private volatile long rootId = -1;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  public BoxCache(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  public Long getBox(long cell) {
+    return get(cell);
+  }
+
+  public void putBox(long cell, long nodeId) {
+    put(cell, nodeId);
+  }
+
+  public Long getLink(String id) {
+    return get(id);
+  }
+
+  public void putLink(String id, long relationshipId) {
+    put(id, relationshipId);
+  }
+
+  /**
+   * Get or create the ROOT node, skipping the legacy index once it is known.
+   * Must be called inside a transaction.
+   */
+  public Node getRoot(GraphDatabaseService graphDb) {
+    long id = rootId;
+    if(id >= 0) {
+      try {
+        return graphDb.getNodeById(id);
+      } catch (NotFoundException e) {
+        //the store changed under us, nothing cached can be trusted
+        clear();
+      }
+    }
+
+    UniqueFactory<Node> factory = new UniqueFactory.UniqueNodeFactory( graphDb, Settings.NEO_ROOT)
+    {
+      @Override
+      protected void initialize( Node created, Map<String, Object> properties )
+      {
+        created.setProperty( "id", properties.get( "id" ) );
+        //nothing is below a new root, so its summaries start out complete
+        created.setProperty( "temporalSummaries", true );
+        created.setProperty( "tagSummaries", true );
+      }
+    };
+    UniqueFactory.UniqueEntity<Node> root = factory.getOrCreateWithOutcome("id", 0);
+
+    //a root created by this transaction is not committed yet
+    if(!root.wasCreated()) {
+      rootId = root.entity().getId();
+    }
+    return root.entity();
+  }
+
+  public synchronized void removeBox(long cell) {
+    if(ids.remove(cell) != null) {
+      usedBytes -= bytes(cell);
+    }
+  }
+
+  /**
+   * Drop everything, e.g. when a cached id turns out to be stale.
+   */
+  public synchronized void clear() {
+    ids.clear();
+    usedBytes = 0;
+    rootId = -1;
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("entries", ids.size());
+    stats.put("bytes", usedBytes);
+    stats.put("budget", budgetBytes);
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    return stats;
+  }
+
+  private synchronized Long get(Object key) {
+    Long id = ids.get(key);
+    if(id == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return id;
+  }
+
+  private synchronized void put(Object key, long id) {
+    if(ids.put(key, id) == null) {
+      usedBytes += bytes(key);
+    }
+
+    //evict least recently used ids until we are back under budget
+    Iterator<Map.Entry<Object, Long>> eldest = ids.entrySet().iterator();
+    while(usedBytes > budgetBytes && eldest.hasNext()) {
+      Object evicted = eldest.next().getKey();
+      eldest.remove();
+      usedBytes -= bytes(evicted);
+    }
+  }
+
+  private static int bytes(Object key) {
+    if(key instanceof String) {
+      return ENTRY_BYTES + 40 + 2 * ((String) key).length();
+    }
+    return ENTRY_BYTES;
+  }
+}
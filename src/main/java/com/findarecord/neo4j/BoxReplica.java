@@ -0,0 +1,843 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves queries from a BoxSnapshot rather than the graph, with whatever
+ * was written since the snapshot was taken laid over it.
+ *
+ * Like the HitCache it registers for transaction events, noting the ids
+ * of the Entry and BOX nodes every commit changes. These are read back
+ * from the graph right after the commit, by a thread of our own as the
+ * committing one can't read yet, and merged into the view, where
+ * changed entries are indexed by the cells linking them. The snapshot's
+ * postings of a changed entry are skipped and its current state is served
+ * instead. Once more than maxDelta changes are laid over, a new snapshot
+ * is written in the background and swapped in, with the changes made
+ * while it was being written laid over it.
+ *
+ * A view's version is the rollupVersion of the last commit merged into
+ * it, only raised once that commit's changes are in, so a version read
+ * before querying is never newer than what the query sees.
+ *
+ * Snapshots are only written once ROOT has tagSummaries set, as they match
+ * tags by code alone. After a snapshot fails, the next one waits a minute,
+ * doubling with every failure up to an hour.
+ */
+public class BoxReplica implements TransactionEventHandler<Void> {
+
+  private static final Logger logger = LoggerFactory.getLogger(BoxReplica.class);
+
+  private final static String PREFIX = "boxes-";
+  private final static String SUFFIX = ".snapshot";
+
+  private final static long MIN_BACKOFF_MILLIS = 60 * 1000L;
+  private final static long MAX_BACKOFF_MILLIS = 60 * 60 * 1000L;
+
+  private final GraphDatabaseService graphDb;
+
+  private final BoxCache boxCache;
+
+  private final File dir;
+
+  private final int maxDelta;
+
+  //snapshot with every change committed since laid over it, null until a snapshot is written
+  private volatile View view;
+
+  //changed since the snapshot being written was started, null if none is
+  private HashSet<Long> writingEntries;
+  private HashSet<Long> writingBoxes;
+  private long writingVersion;
+
+  private long generation = 0;
+
+  //reads back what afterCommit was told about, one commit at a time
+  private final ExecutorService applier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "box-replica-applier");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  //no new snapshot is started before this, after one failed
+  private long retryAt = 0;
+  private long backoffMillis = 0;
+
+  public BoxReplica(GraphDatabaseService graphDb, BoxCache boxCache, File dir, int maxDelta) {
+    this.graphDb = graphDb;
+    this.boxCache = boxCache;
+    this.dir = dir;
+    this.maxDelta = maxDelta;
+  }
+
+  /**
+   * Start tracking changes, and serve from the newest snapshot in dir if
+   * nothing was written since. Otherwise a new one is written in the
+   * background, and queries go to the graph until it is done.
+   */
+  public void start() {
+    graphDb.registerTransactionEventHandler(this);
+    dir.mkdirs();
+
+    File latest = null;
+    long latestGeneration = -1;
+    File[] files = dir.listFiles();
+    for(File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      if(name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+        try {
+          long fileGeneration = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+          if(fileGeneration > latestGeneration) {
+            latest = file;
+            latestGeneration = fileGeneration;
+          }
+        } catch (NumberFormatException e) {
+          //not one of ours
+        }
+      }
+    }
+
+    if(latest != null) {
+      try {
+        BoxSnapshot snapshot = BoxSnapshot.open(latest);
+        long version;
+        try(Transaction tx = graphDb.beginTx()) {
+          version = Rollups.getVersion(boxCache.getRoot(graphDb));
+          tx.success();
+        }
+        //every write bumps the version, so an equal one means nothing changed
+        if(snapshot.getRollupVersion() == version && snapshot.hasTagSummaries()) {
+          synchronized (this) {
+            generation = latestGeneration;
+            view = new View(snapshot);
+          }
+          logger.info("Serving BOX replica from " + latest);
+        }
+      } catch (IOException e) {
+        logger.warn("Unable to open BOX snapshot " + latest, e);
+      }
+    }
+
+    //anything else is from an older run
+    for(File file : files == null ? new File[0] : files) {
+      if(file.getName().startsWith(PREFIX) && (view == null || !file.equals(view.snapshot.getFile()))) {
+        file.delete();
+      }
+    }
+
+    if(view == null) {
+      refresh();
+    }
+  }
+
+  /**
+   * The current snapshot with everything committed so far laid over it,
+   * or null while the first snapshot is being written.
+   */
+  public View getView() {
+    return view;
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("generation", generation);
+    if(view != null) {
+      stats.put("boxes", view.snapshot.getBoxCount());
+      stats.put("postings", view.snapshot.getPostingCount());
+      stats.put("bytes", view.snapshot.getBytes());
+      stats.put("rollupVersion", view.snapshot.getRollupVersion());
+      stats.put("version", view.getVersion());
+      stats.put("changedEntries", view.entries.size());
+      stats.put("changedBoxes", view.boxes.size());
+    }
+    stats.put("writing", writingEntries != null);
+    return stats;
+  }
+
+  @Override
+  public Void beforeCommit(TransactionData data) throws Exception {
+    return null;
+  }
+
+  @Override
+  public void afterCommit(TransactionData data, Void state) {
+    final HashSet<Long> entries = new HashSet<>();
+    final HashSet<Long> boxes = new HashSet<>();
+    long committedVersion = -1;
+    for(PropertyEntry<Node> property : data.assignedNodeProperties()) {
+      String key = property.key();
+      if(key.equals("rollupVersion")) {
+        committedVersion = (long) property.value();
+      } else if(key.equals("from") || key.equals("collection_id") || key.equals("cells")) {
+        entries.add(property.entity().getId());
+      } else if(key.equals("lastUpdated")) {
+        boxes.add(property.entity().getId());
+      }
+    }
+    //boxes are never deleted, so this is an entry or nothing we serve
+    for(Node node : data.deletedNodes()) {
+      entries.add(node.getId());
+    }
+    if(entries.isEmpty() && boxes.isEmpty() && committedVersion < 0) {
+      return;
+    }
+
+    //this thread can't read the graph until the commit is done, so wait for the applier instead
+    final long version = committedVersion;
+    Future<Boolean> merged = applier.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return merge(entries, boxes, version);
+      }
+    });
+    boolean full;
+    try {
+      full = merged.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException e) {
+      logger.error("Unable to merge committed changes", e.getCause());
+      return;
+    }
+    if(full) {
+      refresh();
+    }
+  }
+
+  //lay committed changes over the view, and tell whether a new snapshot is due
+  private synchronized boolean merge(Set<Long> entries, Set<Long> boxes, long version) {
+    if(writingEntries != null) {
+      writingEntries.addAll(entries);
+      writingBoxes.addAll(boxes);
+      writingVersion = Math.max(writingVersion, version);
+    }
+    //without a view there is nothing to lay changes over, the next snapshot has them
+    if(view != null) {
+      try {
+        apply(view, entries, boxes, version);
+      } catch (RuntimeException e) {
+        logger.error("Unable to read back committed changes, serving from the graph until the next BOX snapshot", e);
+        view = null;
+      }
+    }
+    return writingEntries == null
+        && (view == null || view.entries.size() + view.boxes.size() > maxDelta)
+        && System.currentTimeMillis() >= retryAt;
+  }
+
+  @Override
+  public void afterRollback(TransactionData data, Void state) {
+  }
+
+  /**
+   * Write a new snapshot in the background, unless one is being written.
+   */
+  private synchronized void refresh() {
+    if(writingEntries != null) {
+      return;
+    }
+    writingEntries = new HashSet<>();
+    writingBoxes = new HashSet<>();
+    writingVersion = -1;
+
+    final File file = new File(dir, PREFIX + (generation + 1) + SUFFIX);
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        write(file);
+      }
+    }, "box-replica-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  private void write(File file) {
+    View fresh = null;
+    try {
+      boolean tagged;
+      try(Transaction tx = graphDb.beginTx()) {
+        tagged = Rollups.hasTagSummaries(boxCache.getRoot(graphDb));
+        tx.success();
+      }
+      if(tagged) {
+        long start = System.currentTimeMillis();
+        fresh = new View(BoxSnapshot.write(graphDb, boxCache, file));
+        logger.info("Wrote BOX snapshot " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+
+        //changes from before the snapshot was started are in it, later ones may not be
+        HashSet<Long> entries;
+        HashSet<Long> boxes;
+        long version;
+        synchronized (this) {
+          entries = writingEntries;
+          boxes = writingBoxes;
+          version = writingVersion;
+          writingEntries = new HashSet<>();
+          writingBoxes = new HashSet<>();
+          writingVersion = -1;
+        }
+        apply(fresh, entries, boxes, version);
+      } else {
+        logger.error("Not writing a BOX snapshot until tag summaries are rebuilt, see --rebuild_rollups");
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.error("Unable to write BOX snapshot " + file, e);
+      fresh = null;
+    }
+
+    View old;
+    synchronized (this) {
+      old = view;
+      if(fresh != null) {
+        //and the ones committed since, before any more can be
+        try {
+          apply(fresh, writingEntries, writingBoxes, writingVersion);
+        } catch (RuntimeException e) {
+          logger.error("Unable to read back changes for BOX snapshot " + file, e);
+          fresh = null;
+        }
+      }
+      if(fresh != null) {
+        generation++;
+        view = fresh;
+        backoffMillis = 0;
+        retryAt = 0;
+      } else {
+        backoffMillis = Math.min(backoffMillis == 0 ? MIN_BACKOFF_MILLIS : backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        retryAt = System.currentTimeMillis() + backoffMillis;
+        logger.warn("Not writing another BOX snapshot for " + backoffMillis + "ms");
+      }
+      writingEntries = null;
+      writingBoxes = null;
+    }
+    //the old mapping stays valid for queries still using it
+    if(fresh != null && old != null) {
+      old.snapshot.getFile().delete();
+    } else if(fresh == null) {
+      file.delete();
+    }
+  }
+
+  //lay the current state of some entries and boxes over a view, in a transaction of our own
+  private void apply(View target, Set<Long> entryIds, Set<Long> boxIds, long version) {
+    if(!entryIds.isEmpty() || !boxIds.isEmpty()) {
+      try(Transaction tx = graphDb.beginTx()) {
+        target.apply(graphDb, entryIds, boxIds);
+        tx.success();
+      }
+    }
+    //only once the changes are in, so the version never runs ahead of them
+    target.version = Math.max(target.version, version);
+  }
+
+  /**
+   * A snapshot with the entries and boxes changed since laid over it.
+   * Queries on a view never touch the graph, and don't need a transaction.
+   *
+   * Changes are merged in place by one writer at a time while queries
+   * read, so a query running across a commit may see part of it, as it
+   * would on the graph.
+   */
+  public static class View {
+
+    private final static int REJECTED = 0;
+    private final static int ACCEPTED = 1;
+    private final static int INSIDE = 2;
+
+    //box of nearest candidates for cells of changed entries
+    private final static int OVERLAY = -2;
+
+    private final BoxSnapshot snapshot;
+
+    //rollupVersion of the snapshot and the commits merged since
+    private volatile long version;
+
+    //changed entries by node id, Change.GONE for ones that are gone
+    private final ConcurrentHashMap<Long, Change> entries = new ConcurrentHashMap<>();
+
+    //ids of changed entries by the cells linking them
+    private final ConcurrentHashMap<Long, Set<Long>> cellEntries = new ConcurrentHashMap<>();
+
+    //cells with changed entries at or below them by parent, ROOT_CELL for level 0
+    private final ConcurrentHashMap<Long, Set<Long>> children = new ConcurrentHashMap<>();
+
+    //changed boxes by node id, as {cell, count, lastUpdated}, reachable ones only
+    private final ConcurrentHashMap<Long, long[]> boxes = new ConcurrentHashMap<>();
+
+    private View(BoxSnapshot snapshot) {
+      this.snapshot = snapshot;
+      this.version = snapshot.getRollupVersion();
+    }
+
+    /**
+     * Rollup version of what this view serves. Read it before querying,
+     * a commit merged in between then only makes it stale.
+     */
+    public long getVersion() {
+      return version;
+    }
+
+    /**
+     * Merge the current state of some entries and boxes into this view.
+     * Must be called inside a transaction, by one thread at a time.
+     */
+    private void apply(GraphDatabaseService graphDb, Set<Long> entryIds, Set<Long> boxIds) {
+      HashMap<Long, Boolean> reachable = new HashMap<>();
+
+      for(Long id : entryIds) {
+        Change change = Change.load(graphDb, id, reachable);
+        Change old = entries.put(id, change);
+        //index the new cells before dropping the old, so queries never lose the entry
+        for(long cell : change.cells) {
+          index(cell, id);
+        }
+        if(old != null) {
+          for(long cell : old.cells) {
+            Set<Long> ids = cellEntries.get(cell);
+            if(ids != null && !change.hasCell(cell)) {
+              ids.remove(id);
+            }
+          }
+        }
+      }
+
+      for(Long id : boxIds) {
+        Node box = graphDb.getNodeById(id);
+        if(isReachable(box, reachable) && box.getProperty("id") instanceof String) {
+          boxes.put(id, new long[] {
+              Cell.fromNodeId((String) box.getProperty("id")),
+              (int) box.getProperty("count", 0),
+              (long) box.getProperty("lastUpdated", 0L)});
+        }
+      }
+    }
+
+    //add an entry to a cell, linking the cell and its ancestors into children as needed
+    private void index(long cell, long id) {
+      Set<Long> ids = cellEntries.get(cell);
+      if(ids != null) {
+        ids.add(id);
+        return;
+      }
+      ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+      ids.add(id);
+      cellEntries.put(cell, ids);
+
+      long child = cell;
+      while(true) {
+        long parent = Cell.level(child) == 0 ? BoxSnapshot.ROOT_CELL : Cell.parent(child);
+        Set<Long> siblings = children.get(parent);
+        if(siblings == null) {
+          siblings = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+          children.put(parent, siblings);
+        }
+        //the rest of the way up is linked already
+        if(!siblings.add(child) || parent == BoxSnapshot.ROOT_CELL) {
+          return;
+        }
+        child = parent;
+      }
+    }
+
+    /**
+     * Add the hits of a shape query to selector, like EntryQuery does on
+     * the graph. tagCodes is null if no tags were asked for.
+     */
+    public void queryGeometry(Envelope envelope, int from, int to, int[] tagCodes, int depth, PreparedGeometry prepared, HitSelector selector, boolean collapse) {
+      GeometryFactory geometryFactory = new GeometryFactory();
+      boolean temporal = snapshot.hasTemporalSummaries();
+      boolean tagged = tagCodes != null && snapshot.hasTagSummaries();
+
+      HashSet<Long> seenEntries = new HashSet<>();
+      HashSet<Integer> insideBoxes = new HashSet<>();
+      ArrayDeque<Integer> queue = new ArrayDeque<>();
+      queue.add(0);
+
+      while(!queue.isEmpty()) {
+        int box = queue.poll();
+        //children and entries both hang one below the box, ROOT is above level 0
+        int level = box == 0 ? -1 : Cell.level(snapshot.getCell(box));
+        if(level + 2 > depth) {
+          continue;
+        }
+
+        int firstPosting = snapshot.getFirstPosting(box);
+        for(int posting = firstPosting; posting < firstPosting + snapshot.getPostingCount(box); posting++) {
+          long entryId = snapshot.getEntryId(posting);
+          //changed entries are served from the overlay below
+          if(entries.containsKey(entryId) || !seenEntries.add(entryId)) {
+            continue;
+          }
+          if(collapse && selector.contains(snapshot.getCollectionId(posting))) {
+            continue;
+          }
+          if(from > snapshot.getTo(posting) || to < snapshot.getFrom(posting)
+              || (tagCodes != null && !snapshot.hasTags(posting, tagCodes))) {
+            continue;
+          }
+          selector.add(snapshot.getHit(posting));
+        }
+
+        int firstChild = snapshot.getFirstChild(box);
+        for(int child = firstChild; child < firstChild + snapshot.getChildCount(box); child++) {
+          long cell = snapshot.getCell(child);
+          if(!intersects(envelope, cell)
+              || (temporal && !snapshot.mayOverlap(child, from, to))
+              || (tagged && !snapshot.mayHaveTags(child, tagCodes))) {
+            continue;
+          }
+          if(prepared != null) {
+            if(insideBoxes.contains(box)) {
+              insideBoxes.add(child);
+            } else {
+              Geometry geometry = geometryFactory.toGeometry(Cell.envelope(cell));
+              if(!prepared.intersects(geometry)) {
+                continue;
+              } else if(prepared.contains(geometry)) {
+                insideBoxes.add(child);
+              }
+            }
+          }
+          queue.add(child);
+        }
+      }
+
+      //then changed entries, down the cells that have any, as {cell, state}
+      ArrayDeque<long[]> cells = new ArrayDeque<>();
+      cells.add(new long[] {BoxSnapshot.ROOT_CELL, ACCEPTED});
+      while(!cells.isEmpty()) {
+        long[] parent = cells.poll();
+        Set<Long> below = children.get(parent[0]);
+        if(below == null) {
+          continue;
+        }
+        for(long cell : below) {
+          if(Cell.level(cell) + 2 > depth) {
+            continue;
+          }
+          int state = accept(cell, (int) parent[1], envelope, prepared, geometryFactory);
+          if(state == REJECTED) {
+            continue;
+          }
+          Set<Long> ids = cellEntries.get(cell);
+          for(Long id : ids == null ? Collections.<Long>emptySet() : ids) {
+            Change change = entries.get(id);
+            if(change == null || change.hit == null || !seenEntries.add(id)) {
+              continue;
+            }
+            EntryHit hit = change.hit;
+            if(from > hit.getTo() || to < hit.getFrom()
+                || (tagCodes != null && !TagDictionary.intersects(change.tagCodes, tagCodes))) {
+              continue;
+            }
+            if(collapse && selector.contains(hit.getCollectionId())) {
+              continue;
+            }
+            selector.add(hit);
+          }
+          cells.add(new long[] {cell, state});
+        }
+      }
+    }
+
+    /**
+     * Write the nearest collections to lon/lat, like EntryQuery does on
+     * the graph. tagCodes is null if no tags were asked for.
+     */
+    public void queryNearest(double lon, double lat, Double radius, DistanceMetric metric, int from, int to, int[] tagCodes, int count, int offset, EntryQuery.IdWriter writer) throws IOException {
+      boolean temporal = snapshot.hasTemporalSummaries();
+      boolean tagged = tagCodes != null && snapshot.hasTagSummaries();
+      int end = offset + count;
+
+      PriorityQueue<Candidate> queue = new PriorityQueue<>();
+      HashSet<Long> seenEntries = new HashSet<>();
+      HashSet<String> collectionIds = new HashSet<>();
+      long order = 0;
+      int i = 0;
+
+      queue.add(new Candidate(0, -1, null, 0, 0, order++));
+      //changed entries are searched down their own cells, next to the snapshot's
+      queue.add(new Candidate(OVERLAY, -1, null, BoxSnapshot.ROOT_CELL, 0, order++));
+
+      while(!queue.isEmpty() && i < end) {
+        Candidate candidate = queue.poll();
+        if(radius != null && candidate.distance > radius) {
+          break;
+        }
+
+        if(candidate.box == OVERLAY) {
+          Set<Long> below = children.get(candidate.cell);
+          for(long cell : below == null ? Collections.<Long>emptySet() : below) {
+            double distance = distance(metric, lon, lat, cell);
+            queue.add(new Candidate(OVERLAY, -1, null, cell, Math.max(distance, candidate.distance), order++));
+          }
+          Set<Long> ids = cellEntries.get(candidate.cell);
+          for(Long id : ids == null ? Collections.<Long>emptySet() : ids) {
+            Change change = entries.get(id);
+            if(change == null || change.hit == null || !seenEntries.add(id)) {
+              continue;
+            }
+            EntryHit hit = change.hit;
+            if(from > hit.getTo() || to < hit.getFrom()
+                || (tagCodes != null && !TagDictionary.intersects(change.tagCodes, tagCodes))) {
+              continue;
+            }
+            queue.add(new Candidate(-1, -1, change, 0, candidate.distance, order++));
+          }
+          continue;
+        }
+
+        if(candidate.box < 0) {
+          String collectionId = candidate.change != null ? candidate.change.hit.getCollectionId() : snapshot.getCollectionId(candidate.posting);
+          if(collectionIds.add(collectionId)) {
+            if(i >= offset) {
+              writer.write(collectionId);
+            }
+            i++;
+          }
+          continue;
+        }
+
+        int firstChild = snapshot.getFirstChild(candidate.box);
+        for(int child = firstChild; child < firstChild + snapshot.getChildCount(candidate.box); child++) {
+          if((temporal && !snapshot.mayOverlap(child, from, to))
+              || (tagged && !snapshot.mayHaveTags(child, tagCodes))) {
+            continue;
+          }
+          double distance = distance(metric, lon, lat, snapshot.getCell(child));
+          queue.add(new Candidate(child, -1, null, 0, Math.max(distance, candidate.distance), order++));
+        }
+
+        int firstPosting = snapshot.getFirstPosting(candidate.box);
+        for(int posting = firstPosting; posting < firstPosting + snapshot.getPostingCount(candidate.box); posting++) {
+          long entryId = snapshot.getEntryId(posting);
+          if(entries.containsKey(entryId) || !seenEntries.add(entryId)) {
+            continue;
+          }
+          if(from > snapshot.getTo(posting) || to < snapshot.getFrom(posting)
+              || (tagCodes != null && !snapshot.hasTags(posting, tagCodes))) {
+            continue;
+          }
+          queue.add(new Candidate(-1, posting, null, 0, candidate.distance, order++));
+        }
+      }
+    }
+
+    /**
+     * Cells at depth in the envelope as {lon, lat, count, lastUpdated} rows,
+     * like HeatmapQuery does on the graph.
+     */
+    public List<double[]> queryHeatmap(Envelope envelope, int depth) {
+      List<double[]> rows = new ArrayList<>();
+      ArrayDeque<Integer> queue = new ArrayDeque<>();
+      queue.add(0);
+
+      while(!queue.isEmpty()) {
+        int box = queue.poll();
+        int firstChild = snapshot.getFirstChild(box);
+        for(int child = firstChild; child < firstChild + snapshot.getChildCount(box); child++) {
+          long cell = snapshot.getCell(child);
+          if(!intersects(envelope, cell)) {
+            continue;
+          }
+          if(Cell.level(cell) + 1 < depth) {
+            queue.add(child);
+          } else if(Cell.level(cell) + 1 == depth) {
+            long[] changed = boxes.get(snapshot.getNodeId(child));
+            if(changed != null) {
+              rows.add(HeatmapQuery.getRow(cell, (int) changed[1], changed[2]));
+            } else {
+              rows.add(HeatmapQuery.getRow(cell, snapshot.getCount(child), snapshot.getLastUpdated(child)));
+            }
+          }
+        }
+      }
+
+      //boxes created since the snapshot
+      for(long[] changed : boxes.values()) {
+        long cell = changed[0];
+        if(Cell.level(cell) + 1 == depth && intersects(envelope, cell) && snapshot.find(cell) < 0) {
+          rows.add(HeatmapQuery.getRow(cell, (int) changed[1], changed[2]));
+        }
+      }
+      return rows;
+    }
+
+    //whether a shape query reaches a cell whose parent it accepted
+    private static int accept(long cell, int parent, Envelope envelope, PreparedGeometry prepared, GeometryFactory geometryFactory) {
+      if(!intersects(envelope, cell)) {
+        return REJECTED;
+      } else if(prepared == null) {
+        return ACCEPTED;
+      } else if(parent == INSIDE) {
+        return INSIDE;
+      }
+      Geometry geometry = geometryFactory.toGeometry(Cell.envelope(cell));
+      if(!prepared.intersects(geometry)) {
+        return REJECTED;
+      }
+      return prepared.contains(geometry) ? INSIDE : ACCEPTED;
+    }
+
+    private static boolean intersects(Envelope envelope, long cell) {
+      return !(envelope.getMaxX() < Cell.minLon(cell)
+          || envelope.getMaxY() < Cell.minLat(cell)
+          || envelope.getMinX() > Cell.maxLon(cell)
+          || envelope.getMinY() > Cell.maxLat(cell));
+    }
+
+    private static double distance(DistanceMetric metric, double lon, double lat, long cell) {
+      return metric.distance(lon, lat, Cell.minLon(cell), Cell.maxLon(cell), Cell.minLat(cell), Cell.maxLat(cell));
+    }
+  }
+
+  /**
+   * Current state of a changed entry, with the cells of the boxes linking
+   * it that a query from ROOT can reach.
+   */
+  private static class Change {
+
+    //an entry that is gone, or no longer an entry
+    private final static Change GONE = new Change(null, new long[0], new int[0]);
+
+    private final EntryHit hit;
+
+    private final long[] cells;
+
+    private final int[] tagCodes;
+
+    private Change(EntryHit hit, long[] cells, int[] tagCodes) {
+      this.hit = hit;
+      this.cells = cells;
+      this.tagCodes = tagCodes;
+    }
+
+    private boolean hasCell(long cell) {
+      for(long own : cells) {
+        if(own == cell) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static Change load(GraphDatabaseService graphDb, long id, HashMap<Long, Boolean> reachable) {
+      Node entry;
+      try {
+        entry = graphDb.getNodeById(id);
+      } catch (NotFoundException e) {
+        return GONE;
+      }
+      if(!entry.hasLabel(DynamicLabel.label("Entry"))) {
+        return GONE;
+      }
+
+      List<Long> cells = new ArrayList<>();
+      for(Relationship rel : entry.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.INCOMING)) {
+        Node box = rel.getStartNode();
+        if(isReachable(box, reachable)) {
+          cells.add(Cell.fromNodeId((String) box.getProperty("id")));
+        }
+      }
+      long[] cellArray = new long[cells.size()];
+      for(int i = 0; i < cellArray.length; i++) {
+        cellArray[i] = cells.get(i);
+      }
+      return new Change(EntryHit.load(entry), cellArray, (int[]) entry.getProperty("tagCodes", new int[0]));
+    }
+  }
+
+  //whether a box has a chain of BOX_LINKs up to ROOT, as only those are ever traversed
+  private static boolean isReachable(Node box, HashMap<Long, Boolean> reachable) {
+    Boolean known = reachable.get(box.getId());
+    if(known != null) {
+      return known;
+    }
+    boolean result = !(box.getProperty("id", null) instanceof String);
+    for(Relationship link : box.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK), Direction.OUTGOING)) {
+      if(result) {
+        break;
+      }
+      result = isReachable(link.getEndNode(), reachable);
+    }
+    reachable.put(box.getId(), result);
+    return result;
+  }
+
+  /**
+   * A box, a posting, a cell of changed entries or a changed entry waiting
+   * in the nearest search.
+   */
+  private static class Candidate implements Comparable<Candidate> {
+
+    private final int box;
+
+    private final int posting;
+
+    private final Change change;
+
+    //cell of an OVERLAY box
+    private final long cell;
+
+    private final double distance;
+
+    private final long order;
+
+    private Candidate(int box, int posting, Change change, long cell, double distance, long order) {
+      this.box = box;
+      this.posting = posting;
+      this.change = change;
+      this.cell = cell;
+      this.distance = distance;
+      this.order = order;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      if(distance != other.distance) {
+        return distance < other.distance ? -1 : 1;
+      }
+      return order < other.order ? -1 : (order > other.order ? 1 : 0);
+    }
+  }
+}
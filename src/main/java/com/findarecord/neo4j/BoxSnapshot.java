@@ -0,0 +1,520 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A read only copy of the BOX tree and its entries, in one flat file that
+ * is memory mapped and read in place.
+ *
+ * Boxes are stored breadth first in the order a traversal from ROOT
+ * reaches them, so the children of a box are one run of box records and
+ * box 0 is ROOT. Every entry linked to a box is written out in full as
+ * one of the box's postings, which makes entries covering several cells
+ * take more room but means a posting never needs another lookup:
+ *
+ *   box:     cell, node id, lastUpdated, count, minFrom, maxTo, first child,
+ *            children, first posting, postings, first tag code, tag codes
+ *   posting: entry node id, collection, from, to, first tag code,
+ *            tag codes, first centroid, centroids
+ *
+ * Tag codes and lon/lat centroids live in sections of their own, and
+ * collection ids in a table of length prefixed UTF-8 strings. A single
+ * mapping can't be over 2GB, so sections are mapped in chunks of whole
+ * records.
+ */
+public class BoxSnapshot {
+
+  private final static int MAGIC = 0x424f5853;
+  private final static int FORMAT = 2;
+
+  private final static int HEADER_BYTES = 64;
+  private final static int BOX_BYTES = 64;
+  private final static int POSTING_BYTES = 40;
+  private final static int CODE_BYTES = 4;
+  private final static int CENTROID_BYTES = 16;
+
+  //largest mapping of a section
+  final static int CHUNK_BYTES = 1 << 30;
+
+  //header flags, copied from ROOT
+  private final static int TEMPORAL = 1;
+  private final static int TAGGED = 2;
+
+  //cell of the ROOT record
+  public final static long ROOT_CELL = -1;
+
+  private final static Charset UTF8 = Charset.forName("UTF-8");
+
+  private final File file;
+
+  private final int flags;
+
+  private final long rollupVersion;
+
+  private final int boxCount;
+
+  private final int postingCount;
+
+  private final long bytes;
+
+  private final Section boxes;
+
+  private final Section postings;
+
+  private final Section codes;
+
+  private final Section centroids;
+
+  private final Section strings;
+
+  private BoxSnapshot(File file, ByteBuffer header, FileChannel channel, int chunkBytes) throws IOException {
+    this.file = file;
+    this.flags = header.getInt(8);
+    this.rollupVersion = header.getLong(16);
+    this.boxCount = header.getInt(24);
+    this.postingCount = header.getInt(28);
+    int codeCount = header.getInt(32);
+    int centroidCount = header.getInt(36);
+    long stringBytes = header.getLong(40);
+
+    long position = HEADER_BYTES;
+    this.boxes = new Section(channel, position, boxCount, BOX_BYTES, chunkBytes);
+    position += align((long) boxCount * BOX_BYTES);
+    this.postings = new Section(channel, position, postingCount, POSTING_BYTES, chunkBytes);
+    position += align((long) postingCount * POSTING_BYTES);
+    this.codes = new Section(channel, position, codeCount, CODE_BYTES, chunkBytes);
+    position += align((long) codeCount * CODE_BYTES);
+    this.centroids = new Section(channel, position, centroidCount, CENTROID_BYTES, chunkBytes);
+    position += align((long) centroidCount * CENTROID_BYTES);
+    this.strings = new Section(channel, position, stringBytes, 1, chunkBytes);
+    this.bytes = position + stringBytes;
+  }
+
+  /**
+   * Map a snapshot written by write(). The mapping outlives the file, so
+   * the file may be deleted while the snapshot is still in use.
+   */
+  public static BoxSnapshot open(File file) throws IOException {
+    return open(file, CHUNK_BYTES);
+  }
+
+  static BoxSnapshot open(File file, int chunkBytes) throws IOException {
+    try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      if(channel.size() < HEADER_BYTES) {
+        throw new IOException(file + " is not a box snapshot");
+      }
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+      if(header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) {
+        throw new IOException(file + " is not a box snapshot");
+      }
+      return new BoxSnapshot(file, header, channel, chunkBytes);
+    }
+  }
+
+  /**
+   * Write a snapshot of the graph to file and map it.
+   *
+   * Everything is read in one pass, writing each section to a file of its
+   * own next to file, which are then joined and moved over file. Writes
+   * that commit while this runs may or may not be in the snapshot, so
+   * callers have to track them from before calling this.
+   */
+  public static BoxSnapshot write(GraphDatabaseService graphDb, BoxCache boxCache, File file) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    File[] parts = new File[5];
+    DataOutputStream[] out = new DataOutputStream[parts.length];
+    File joined = new File(dir, file.getName() + ".tmp");
+
+    try {
+      for(int i = 0; i < parts.length; i++) {
+        parts[i] = File.createTempFile(file.getName(), ".part", dir);
+        out[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(parts[i]), 1 << 16));
+      }
+      DataOutputStream boxOut = out[0];
+      DataOutputStream postingOut = out[1];
+      DataOutputStream codeOut = out[2];
+      DataOutputStream centroidOut = out[3];
+      DataOutputStream stringOut = out[4];
+
+      int flags = 0;
+      long rollupVersion;
+      int boxCount = 0;
+      int postingCount = 0;
+      int codeCount = 0;
+      int centroidCount = 0;
+      long stringBytes = 0;
+      HashMap<String, Long> collections = new HashMap<>();
+
+      try(Transaction tx = graphDb.beginTx()) {
+        Node root = boxCache.getRoot(graphDb);
+        rollupVersion = Rollups.getVersion(root);
+        if(Rollups.hasTemporalSummaries(root)) {
+          flags |= TEMPORAL;
+        }
+        if(Rollups.hasTagSummaries(root)) {
+          flags |= TAGGED;
+        }
+
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        HashSet<Long> seen = new HashSet<>();
+        queue.add(root);
+        seen.add(root.getId());
+        int next = 1;
+
+        while(!queue.isEmpty()) {
+          Node box = queue.poll();
+
+          int firstChild = next;
+          for(Relationship rel : box.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK), Direction.INCOMING)) {
+            Node child = rel.getStartNode();
+            if(seen.add(child.getId())) {
+              queue.add(child);
+              next++;
+            }
+          }
+
+          int firstPosting = postingCount;
+          for(Relationship rel : box.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.OUTGOING)) {
+            Node entry = rel.getEndNode();
+            String collectionId = (String) entry.getProperty("collection_id");
+            Long collection = collections.get(collectionId);
+            if(collection == null) {
+              collection = stringBytes;
+              collections.put(collectionId, collection);
+              byte[] utf8 = collectionId.getBytes(UTF8);
+              stringOut.writeInt(utf8.length);
+              stringOut.write(utf8);
+              stringBytes += 4 + utf8.length;
+            }
+            int[] tagCodes = (int[]) entry.getProperty("tagCodes", new int[0]);
+            double[] lons = (double[]) entry.getProperty("lons");
+            double[] lats = (double[]) entry.getProperty("lats");
+
+            postingOut.writeLong(entry.getId());
+            postingOut.writeLong(collection);
+            postingOut.writeInt((int) entry.getProperty("from"));
+            postingOut.writeInt((int) entry.getProperty("to"));
+            postingOut.writeInt(codeCount);
+            postingOut.writeInt(tagCodes.length);
+            postingOut.writeInt(centroidCount);
+            postingOut.writeInt(lons.length);
+            postingCount++;
+
+            for(int code : tagCodes) {
+              codeOut.writeInt(code);
+            }
+            codeCount += tagCodes.length;
+            for(int i = 0; i < lons.length; i++) {
+              centroidOut.writeDouble(lons[i]);
+              centroidOut.writeDouble(lats[i]);
+            }
+            centroidCount += lons.length;
+          }
+
+          int[] tagCodes = (int[]) box.getProperty("tagCodes", new int[0]);
+          boxOut.writeLong(box.equals(root) ? ROOT_CELL : Cell.fromNodeId((String) box.getProperty("id")));
+          boxOut.writeLong(box.getId());
+          boxOut.writeLong((long) box.getProperty("lastUpdated", 0L));
+          boxOut.writeInt((int) box.getProperty("count", 0));
+          //a box without a range holds no dates at all
+          boxOut.writeInt((int) box.getProperty("minFrom", Integer.MAX_VALUE));
+          boxOut.writeInt((int) box.getProperty("maxTo", Integer.MIN_VALUE));
+          boxOut.writeInt(firstChild);
+          boxOut.writeInt(next - firstChild);
+          boxOut.writeInt(firstPosting);
+          boxOut.writeInt(postingCount - firstPosting);
+          boxOut.writeInt(codeCount);
+          boxOut.writeInt(tagCodes.length);
+          boxOut.writeInt(0);
+          boxCount++;
+
+          for(int code : tagCodes) {
+            codeOut.writeInt(code);
+          }
+          codeCount += tagCodes.length;
+        }
+        tx.success();
+      }
+
+      for(DataOutputStream stream : out) {
+        stream.close();
+      }
+
+      //header, then every section padded to 8 bytes
+      try(RandomAccessFile raf = new RandomAccessFile(joined, "rw"); FileChannel channel = raf.getChannel()) {
+        raf.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(0, MAGIC);
+        header.putInt(4, FORMAT);
+        header.putInt(8, flags);
+        header.putLong(16, rollupVersion);
+        header.putInt(24, boxCount);
+        header.putInt(28, postingCount);
+        header.putInt(32, codeCount);
+        header.putInt(36, centroidCount);
+        header.putLong(40, stringBytes);
+        channel.write(header, 0);
+
+        long position = HEADER_BYTES;
+        for(File part : parts) {
+          try(RandomAccessFile in = new RandomAccessFile(part, "r"); FileChannel partChannel = in.getChannel()) {
+            long size = partChannel.size();
+            long copied = 0;
+            //transferFrom copies nothing past the end of the file, so pad up to here first
+            raf.setLength(position);
+            while(copied < size) {
+              copied += channel.transferFrom(partChannel, position + copied, size - copied);
+            }
+            position = align(position + size);
+          }
+        }
+        raf.setLength(position);
+        channel.force(true);
+      }
+      Files.move(joined.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      for(int i = 0; i < parts.length; i++) {
+        if(out[i] != null) {
+          out[i].close();
+        }
+        if(parts[i] != null) {
+          parts[i].delete();
+        }
+      }
+      joined.delete();
+    }
+
+    return open(file);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public boolean hasTemporalSummaries() {
+    return (flags & TEMPORAL) != 0;
+  }
+
+  public boolean hasTagSummaries() {
+    return (flags & TAGGED) != 0;
+  }
+
+  /**
+   * rollupVersion of ROOT when the snapshot was started.
+   */
+  public long getRollupVersion() {
+    return rollupVersion;
+  }
+
+  public int getBoxCount() {
+    return boxCount;
+  }
+
+  public int getPostingCount() {
+    return postingCount;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getCell(int box) {
+    return boxes.getLong(box, 0);
+  }
+
+  public long getNodeId(int box) {
+    return boxes.getLong(box, 8);
+  }
+
+  public long getLastUpdated(int box) {
+    return boxes.getLong(box, 16);
+  }
+
+  public int getCount(int box) {
+    return boxes.getInt(box, 24);
+  }
+
+  public int getFirstChild(int box) {
+    return boxes.getInt(box, 36);
+  }
+
+  public int getChildCount(int box) {
+    return boxes.getInt(box, 40);
+  }
+
+  public int getFirstPosting(int box) {
+    return boxes.getInt(box, 44);
+  }
+
+  public int getPostingCount(int box) {
+    return boxes.getInt(box, 48);
+  }
+
+  /**
+   * Like Rollups.mayOverlap, for a box of the snapshot.
+   */
+  public boolean mayOverlap(int box, int from, int to) {
+    return from <= boxes.getInt(box, 32) && to >= boxes.getInt(box, 28);
+  }
+
+  /**
+   * Like Rollups.mayHaveTags, for a box of the snapshot.
+   */
+  public boolean mayHaveTags(int box, int[] tagCodes) {
+    return intersects(boxes.getInt(box, 52), boxes.getInt(box, 56), tagCodes);
+  }
+
+  /**
+   * The box of a cell, or -1 if the snapshot doesn't have it.
+   */
+  public int find(long cell) {
+    int box = 0;
+    for(long step : Cell.path(cell)) {
+      int found = -1;
+      int first = getFirstChild(box);
+      for(int child = first; child < first + getChildCount(box); child++) {
+        if(getCell(child) == step) {
+          found = child;
+          break;
+        }
+      }
+      if(found < 0) {
+        return -1;
+      }
+      box = found;
+    }
+    return box;
+  }
+
+  public long getEntryId(int posting) {
+    return postings.getLong(posting, 0);
+  }
+
+  public int getFrom(int posting) {
+    return postings.getInt(posting, 16);
+  }
+
+  public int getTo(int posting) {
+    return postings.getInt(posting, 20);
+  }
+
+  public String getCollectionId(int posting) {
+    long offset = postings.getLong(posting, 8);
+    byte[] length = new byte[4];
+    strings.get(offset, length);
+    byte[] utf8 = new byte[ByteBuffer.wrap(length).getInt()];
+    strings.get(offset + 4, utf8);
+    return new String(utf8, UTF8);
+  }
+
+  /**
+   * Whether a posting has one of tagCodes, both sorted.
+   */
+  public boolean hasTags(int posting, int[] tagCodes) {
+    return intersects(postings.getInt(posting, 24), postings.getInt(posting, 28), tagCodes);
+  }
+
+  public EntryHit getHit(int posting) {
+    int first = postings.getInt(posting, 32);
+    int count = postings.getInt(posting, 36);
+    double[] lons = new double[count];
+    double[] lats = new double[count];
+    for(int i = 0; i < count; i++) {
+      lons[i] = centroids.getDouble(first + i, 0);
+      lats[i] = centroids.getDouble(first + i, 8);
+    }
+    return new EntryHit(getEntryId(posting), getCollectionId(posting), getFrom(posting), getTo(posting), lons, lats);
+  }
+
+  //sorted merge of a run of stored codes with sorted codes
+  private boolean intersects(int first, int count, int[] tagCodes) {
+    int i = 0;
+    int j = 0;
+    while(i < count && j < tagCodes.length) {
+      int code = codes.getInt(first + i, 0);
+      if(code == tagCodes[j]) {
+        return true;
+      } else if(code < tagCodes[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return false;
+  }
+
+  private static long align(long position) {
+    return (position + 7) & ~7L;
+  }
+
+  /**
+   * A section of fixed size records, mapped as chunks of as many whole
+   * records as fit in chunkBytes. Strings are records of one byte, the
+   * only ones read across a chunk boundary.
+   */
+  private static class Section {
+
+    private final ByteBuffer[] chunks;
+
+    private final int recordBytes;
+
+    private final long chunkRecords;
+
+    private Section(FileChannel channel, long position, long records, int recordBytes, int chunkBytes) throws IOException {
+      this.recordBytes = recordBytes;
+      this.chunkRecords = chunkBytes / recordBytes;
+      long chunkSize = chunkRecords * recordBytes;
+      long size = records * recordBytes;
+      this.chunks = new ByteBuffer[(int) ((size + chunkSize - 1) / chunkSize)];
+      for(int i = 0; i < chunks.length; i++) {
+        long start = i * chunkSize;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start, Math.min(chunkSize, size - start));
+      }
+    }
+
+    private int getInt(long record, int offset) {
+      return chunks[(int) (record / chunkRecords)].getInt((int) (record % chunkRecords) * recordBytes + offset);
+    }
+
+    private long getLong(long record, int offset) {
+      return chunks[(int) (record / chunkRecords)].getLong((int) (record % chunkRecords) * recordBytes + offset);
+    }
+
+    private double getDouble(long record, int offset) {
+      return chunks[(int) (record / chunkRecords)].getDouble((int) (record % chunkRecords) * recordBytes + offset);
+    }
+
+    //bytes from position on, which may span chunks
+    private void get(long position, byte[] bytes) {
+      int done = 0;
+      while(done < bytes.length) {
+        //a view of our own, so concurrent readers don't share a position
+        ByteBuffer view = chunks[(int) ((position + done) / chunkRecords)].duplicate();
+        view.position((int) ((position + done) % chunkRecords));
+        int length = Math.min(bytes.length - done, view.remaining());
+        view.get(bytes, done, length);
+        done += length;
+      }
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.index.UniqueFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Writes cell covers into the BOX hierarchy.
+ *
+ * Resolved BOX nodes are remembered by cell, so ancestors shared by many
+ * cells (or by many entries in the same batch) go through the unique
+ * factories only once. Boxes that already existed are also shared through
+ * the BoxCache; boxes created by this writer are only shared once commit()
+ * is called after its transaction committed. A writer must not outlive its
+ * transaction.
+ */
+public class BoxWriter {
+
+  private GraphDatabaseService graphDb;
+
+  private BoxCache boxCache;
+
+  private UniqueFactory<Node> boxFactory;
+
+  private UniqueFactory<Relationship> linkFactory;
+
+  private Node root;
+
+  //BOX nodes resolved by this writer
+  private HashMap<Long, Node> boxes = new HashMap<>();
+
+  //BOX_LINK keys resolved by this writer
+  private HashSet<String> links = new HashSet<>();
+
+  //ids created by this writer, shared with the cache on commit
+  private HashMap<Long, Long> createdBoxes = new HashMap<>();
+  private HashMap<String, Long> createdLinks = new HashMap<>();
+
+  //the two ends of the link being resolved by linkFactory
+  private Node linkParent;
+  private Node linkChild;
+
+  public BoxWriter(GraphDatabaseService graphDb, BoxCache boxCache) {
+    this.graphDb = graphDb;
+    this.boxCache = boxCache;
+
+    boxFactory = new UniqueFactory.UniqueNodeFactory( graphDb, Settings.NEO_BOX )
+    {
+      @Override
+      protected void initialize( Node created, Map<String, Object> properties )
+      {
+        created.setProperty( "id", properties.get( "id" ) );
+      }
+    };
+
+    linkFactory = new UniqueFactory.UniqueRelationshipFactory( graphDb, Settings.NEO_BOX_LINK_INDEX )
+    {
+      @Override
+      protected Relationship create( Map<String, Object> properties )
+      {
+        return linkChild.createRelationshipTo(linkParent, DynamicRelationshipType.withName(Settings.NEO_BOX_LINK));
+      }
+    };
+  }
+
+  /**
+   * Link an entry to every cell in its cover, creating missing boxes.
+   * Links carry the entry's collection_id, so queries can skip entries of
+   * collections they already have without loading them.
+   */
+  public void linkEntry(Node entryNode, long[] cells) {
+    Object collectionId = entryNode.getProperty("collection_id", null);
+    for(long cell : cells) {
+      Relationship rel = getBox(cell).createRelationshipTo(entryNode, DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT));
+      if(collectionId != null) {
+        rel.setProperty("collection_id", collectionId);
+      }
+    }
+  }
+
+  public Node getRoot() {
+    if(root == null) {
+      root = boxCache.getRoot(graphDb);
+    }
+    return root;
+  }
+
+  public Node getBox(long cell) {
+    Node box = boxes.get(cell);
+    if(box != null) {
+      return box;
+    }
+
+    //a cached box is committed, and so are its ancestors and its link
+    Long boxId = boxCache.getBox(cell);
+    if(boxId != null) {
+      try {
+        box = graphDb.getNodeById(boxId);
+        boxes.put(cell, box);
+        return box;
+      } catch (NotFoundException e) {
+        boxCache.removeBox(cell);
+      }
+    }
+
+    //resolve the parent first, so shared prefixes are only walked once
+    Node parent = Cell.level(cell) == 0 ? getRoot() : getBox(Cell.parent(cell));
+
+    UniqueFactory.UniqueEntity<Node> uniqueBox = boxFactory.getOrCreateWithOutcome("id", Cell.nodeId(cell));
+    box = uniqueBox.entity();
+
+    //links are unique by the cell's own id, not its full path
+    String id = Cell.id(cell);
+    if(links.add(id) && boxCache.getLink(id) == null) {
+      linkParent = parent;
+      linkChild = box;
+      UniqueFactory.UniqueEntity<Relationship> rel = linkFactory.getOrCreateWithOutcome("id", id);
+      if(rel.wasCreated()) {
+        rel.entity().setProperty("minLon", Cell.minLon(cell));
+        rel.entity().setProperty("maxLon", Cell.maxLon(cell));
+        rel.entity().setProperty("minLat", Cell.minLat(cell));
+        rel.entity().setProperty("maxLat", Cell.maxLat(cell));
+        createdLinks.put(id, rel.entity().getId());
+      } else {
+        boxCache.putLink(id, rel.entity().getId());
+      }
+    }
+
+    if(uniqueBox.wasCreated()) {
+      createdBoxes.put(cell, box.getId());
+    } else {
+      boxCache.putBox(cell, box.getId());
+    }
+
+    boxes.put(cell, box);
+    return box;
+  }
+
+  /**
+   * Share the ids created by this writer, once its transaction has committed.
+   */
+  public void commit() {
+    for(Map.Entry<Long, Long> box : createdBoxes.entrySet()) {
+      boxCache.putBox(box.getKey(), box.getValue());
+    }
+    for(Map.Entry<String, Long> link : createdLinks.entrySet()) {
+      boxCache.putLink(link.getKey(), link.getValue());
+    }
+    createdBoxes.clear();
+    createdLinks.clear();
+  }
+}
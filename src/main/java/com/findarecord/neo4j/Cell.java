@@ -0,0 +1,240 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Integer addressing for the box grid.
+ *
+ * A cell is a packed long holding its level and the lon/lat of its
+ * lower-left corner in steps of 10^-DECIMALS degrees. Level 0 is the
+ * 10 degree grid, every following level splits a cell into WIDTH x WIDTH
+ * children, down to MAX_LEVEL where a cell is one step wide.
+ */
+public final class Cell {
+
+  private Cell(){}
+
+  //number of integer steps in one degree
+  public final static int STEPS = pow(10, Settings.DECIMALS);
+
+  //deepest level, where a cell is exactly one step wide
+  public final static int MAX_LEVEL = Settings.DECIMALS + 1;
+
+  private final static int LON_OFFSET = 180 * STEPS;
+  private final static int LAT_OFFSET = 90 * STEPS;
+
+  private final static int COORD_BITS = 20;
+  private final static long COORD_MASK = (1L << COORD_BITS) - 1;
+
+  //width of a cell in steps, by level
+  private final static int[] SIZES = new int[MAX_LEVEL + 1];
+
+  static {
+    SIZES[0] = Settings.FIRST_LEVEL_WIDTH * STEPS;
+    for(int level = 1; level <= MAX_LEVEL; level++) {
+      SIZES[level] = SIZES[level - 1] / Settings.WIDTH;
+    }
+  }
+
+  public static long pack(int level, int lon, int lat) {
+    return ((long) level << (2 * COORD_BITS))
+        | ((long) (lon + LON_OFFSET) << COORD_BITS)
+        | (long) (lat + LAT_OFFSET);
+  }
+
+  public static int level(long cell) {
+    return (int) (cell >>> (2 * COORD_BITS));
+  }
+
+  public static int lon(long cell) {
+    return (int) ((cell >>> COORD_BITS) & COORD_MASK) - LON_OFFSET;
+  }
+
+  public static int lat(long cell) {
+    return (int) (cell & COORD_MASK) - LAT_OFFSET;
+  }
+
+  public static int size(int level) {
+    return SIZES[level];
+  }
+
+  public static long[] firstLevel() {
+    int size = SIZES[0];
+    long[] cells = new long[(2 * LON_OFFSET / size) * (2 * LAT_OFFSET / size)];
+    int i = 0;
+    for(int lon = -LON_OFFSET; lon < LON_OFFSET; lon += size) {
+      for(int lat = -LAT_OFFSET; lat < LAT_OFFSET; lat += size) {
+        cells[i++] = pack(0, lon, lat);
+      }
+    }
+    return cells;
+  }
+
+  public static long[] children(long cell) {
+    int level = level(cell) + 1;
+    int size = SIZES[level];
+    int fromLon = lon(cell);
+    int fromLat = lat(cell);
+    long[] cells = new long[Settings.WIDTH * Settings.WIDTH];
+    int i = 0;
+    for(int lon = 0; lon < Settings.WIDTH; lon++) {
+      for(int lat = 0; lat < Settings.WIDTH; lat++) {
+        cells[i++] = pack(level, fromLon + lon * size, fromLat + lat * size);
+      }
+    }
+    return cells;
+  }
+
+  public static long parent(long cell) {
+    int level = level(cell) - 1;
+    int size = SIZES[level];
+    int lon = (lon(cell) + LON_OFFSET) / size * size - LON_OFFSET;
+    int lat = (lat(cell) + LAT_OFFSET) / size * size - LAT_OFFSET;
+    return pack(level, lon, lat);
+  }
+
+  /**
+   * The chain of cells from level 0 down to and including this cell.
+   */
+  public static long[] path(long cell) {
+    long[] path = new long[level(cell) + 1];
+    for(int i = path.length - 1; i >= 0; i--) {
+      path[i] = cell;
+      if(i > 0) {
+        cell = parent(cell);
+      }
+    }
+    return path;
+  }
+
+  public static double minLon(long cell) {
+    return toDegrees(lon(cell));
+  }
+
+  public static double maxLon(long cell) {
+    return toDegrees(lon(cell) + SIZES[level(cell)]);
+  }
+
+  public static double minLat(long cell) {
+    return toDegrees(lat(cell));
+  }
+
+  public static double maxLat(long cell) {
+    return toDegrees(lat(cell) + SIZES[level(cell)]);
+  }
+
+  public static Envelope envelope(long cell) {
+    return new Envelope(minLon(cell), maxLon(cell), minLat(cell), maxLat(cell));
+  }
+
+  public static Polygon toPolygon(long cell, GeometryFactory factory) {
+    double minLon = minLon(cell);
+    double maxLon = maxLon(cell);
+    double minLat = minLat(cell);
+    double maxLat = maxLat(cell);
+
+    Coordinate[] coords = new Coordinate[5];
+    coords[0] = new Coordinate(minLon, minLat);
+    coords[1] = new Coordinate(maxLon, minLat);
+    coords[2] = new Coordinate(maxLon, maxLat);
+    coords[3] = new Coordinate(minLon, maxLat);
+    coords[4] = new Coordinate(minLon, minLat);
+    LinearRing ring = factory.createLinearRing(coords);
+    return factory.createPolygon(ring, null);
+  }
+
+  /**
+   * The "+lon,+lat" id of this cell, as used for BOX_LINK keys.
+   */
+  public static String id(long cell) {
+    StringBuilder id = new StringBuilder(24);
+    appendCoordinate(id, lon(cell));
+    id.append(',');
+    appendCoordinate(id, lat(cell));
+    return id.toString();
+  }
+
+  /**
+   * The ":id:id:..." id of the BOX node for this cell.
+   */
+  public static String nodeId(long cell) {
+    StringBuilder id = new StringBuilder(128);
+    for(long box : path(cell)) {
+      id.append(':');
+      appendCoordinate(id, lon(box));
+      id.append(',');
+      appendCoordinate(id, lat(box));
+    }
+    return id.toString();
+  }
+
+  /**
+   * Parse the ":id:id:..." id of a BOX node back into its cell.
+   */
+  public static long fromNodeId(String nodeId) {
+    int level = -1;
+    for(int i = 0; i < nodeId.length(); i++) {
+      if(nodeId.charAt(i) == ':') {
+        level++;
+      }
+    }
+    String id = nodeId.substring(nodeId.lastIndexOf(':') + 1);
+    int comma = id.indexOf(',');
+    return pack(level, parseCoordinate(id.substring(0, comma)), parseCoordinate(id.substring(comma + 1)));
+  }
+
+  private static int parseCoordinate(String coordinate) {
+    int sign = coordinate.charAt(0) == '-' ? -1 : 1;
+    int start = coordinate.charAt(0) == '-' || coordinate.charAt(0) == '+' ? 1 : 0;
+    int dot = coordinate.indexOf('.');
+    int whole = Integer.parseInt(coordinate.substring(start, dot < 0 ? coordinate.length() : dot));
+    int fraction = 0;
+    if(dot >= 0) {
+      String digits = coordinate.substring(dot + 1);
+      fraction = Integer.parseInt(digits) * pow(10, Settings.DECIMALS - digits.length());
+    }
+    return sign * (whole * STEPS + fraction);
+  }
+
+  private static double toDegrees(int steps) {
+    return steps / (double) STEPS;
+  }
+
+  //writes the shortest decimal form of steps, with a leading sign
+  private static void appendCoordinate(StringBuilder sb, int steps) {
+    if(steps >= 0) {
+      sb.append('+');
+    } else {
+      sb.append('-');
+      steps = -steps;
+    }
+    sb.append(steps / STEPS);
+
+    int fraction = steps % STEPS;
+    if(fraction != 0) {
+      int digits = Settings.DECIMALS;
+      while(fraction % 10 == 0) {
+        fraction /= 10;
+        digits--;
+      }
+      sb.append('.');
+      String fractionString = Integer.toString(fraction);
+      for(int i = fractionString.length(); i < digits; i++) {
+        sb.append('0');
+      }
+      sb.append(fractionString);
+    }
+  }
+
+  private static int pow(int base, int exponent) {
+    int result = 1;
+    for(int i = 0; i < exponent; i++) {
+      result *= base;
+    }
+    return result;
+  }
+}
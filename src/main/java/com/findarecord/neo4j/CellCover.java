@@ -0,0 +1,109 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+import java.util.Arrays;
+
+/**
+ * Computes the set of cells a geometry covers, without touching the graph.
+ *
+ * A cell is in the cover if the geometry contains it, or if the geometry
+ * intersects it and it is at Cell.MAX_LEVEL. Covers are returned sorted
+ * and without duplicates.
+ */
+public class CellCover {
+
+  private final static GeometryFactory geometryFactory = new GeometryFactory();
+
+  private long[] cells = new long[64];
+
+  private int size = 0;
+
+  private CellCover() {}
+
+  public static long[] cover(Geometry geometry) {
+    CellCover cover = new CellCover();
+    for(int i = 0; i < geometry.getNumGeometries(); i++) {
+      cover.add(geometry.getGeometryN(i));
+    }
+    return cover.toArray();
+  }
+
+  private void add(Geometry geometry) {
+
+    //prepare the geometry once so every box test reuses its indexes
+    PreparedGeometry preparedGeometry = PreparedGeometryFactory.prepare(geometry);
+
+    //cover first level
+    coverLevel(preparedGeometry, Cell.firstLevel());
+  }
+
+  private void coverLevel(PreparedGeometry geometryToIndex, long[] levelCells) {
+
+    Geometry geometry = geometryToIndex.getGeometry();
+    Envelope envelope = geometry.getEnvelopeInternal();
+
+    //points and lines can never contain a box
+    boolean canContain = geometry.getDimension() == 2;
+
+    //loop through cells
+    for(long cell : levelCells) {
+      double minLon = Cell.minLon(cell);
+      double maxLon = Cell.maxLon(cell);
+      double minLat = Cell.minLat(cell);
+      double maxLat = Cell.maxLat(cell);
+
+      //if the envelopes don't touch, there is no need for a topology test
+      if(minLon > envelope.getMaxX() || maxLon < envelope.getMinX()
+          || minLat > envelope.getMaxY() || maxLat < envelope.getMinY()) {
+        continue;
+      }
+
+      Polygon polygon = Cell.toPolygon(cell, geometryFactory);
+
+      //if geometryToIndex contains this cell, add and continue
+      if(canContain
+          && envelope.getMinX() <= minLon && envelope.getMaxX() >= maxLon
+          && envelope.getMinY() <= minLat && envelope.getMaxY() >= maxLat
+          && geometryToIndex.contains(polygon)) {
+        append(cell);
+        continue;
+      }
+
+      //if geometryToIndex intersects this cell, recurse or stop
+      if(geometryToIndex.intersects(polygon)) {
+        //if we are at our max depth, add rather than recurse
+        if(Cell.level(cell) >= Cell.MAX_LEVEL) {
+          append(cell);
+        } else {
+          coverLevel(geometryToIndex, Cell.children(cell));
+        }
+      }
+    }
+  }
+
+  private void append(long cell) {
+    if(size == cells.length) {
+      cells = Arrays.copyOf(cells, size * 2);
+    }
+    cells[size++] = cell;
+  }
+
+  private long[] toArray() {
+    Arrays.sort(cells, 0, size);
+
+    //remove cells covered by more than one part of a multi geometry
+    int unique = 0;
+    for(int i = 0; i < size; i++) {
+      if(unique == 0 || cells[i] != cells[unique - 1]) {
+        cells[unique++] = cells[i];
+      }
+    }
+    return Arrays.copyOf(cells, unique);
+  }
+}
@@ -0,0 +1,89 @@
+package com.findarecord.neo4j;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.UniqueFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists XDCR _local checkpoint documents in the graph, so replication
+ * can resume where it stopped after a restart.
+ *
+ * Each document is a Checkpoint node keyed by database and doc id,
+ * holding the document as a JSON string.
+ */
+public class CheckpointStore {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private GraphDatabaseService graphDb;
+
+  public CheckpointStore(GraphDatabaseService graphDb) {
+    this.graphDb = graphDb;
+  }
+
+  public Map<String, Object> get(String database, String docId) {
+    String json;
+    try ( Transaction tx = graphDb.beginTx() ) {
+      Node checkpoint = graphDb.index().forNodes(Settings.NEO_CHECKPOINT).get("id", key(database, docId)).getSingle();
+      json = checkpoint == null ? null : (String) checkpoint.getProperty("json");
+      tx.success();
+    }
+
+    if(json == null) {
+      return null;
+    }
+    try {
+      return (Map<String, Object>) mapper.readValue(json, Map.class);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Store a document, returning its new revision.
+   */
+  public String store(String database, String docId, Map<String, Object> document) {
+    Map<String, Object> stored = new HashMap<>(document);
+    String rev;
+
+    try ( Transaction tx = graphDb.beginTx() ) {
+      UniqueFactory<Node> factory = new UniqueFactory.UniqueNodeFactory( graphDb, Settings.NEO_CHECKPOINT)
+      {
+        @Override
+        protected void initialize( Node created, Map<String, Object> properties )
+        {
+          created.setProperty( "id", properties.get( "id" ) );
+          created.setProperty( "version", 0L );
+          created.addLabel(DynamicLabel.label("Checkpoint"));
+        }
+      };
+      Node checkpoint = factory.getOrCreate("id", key(database, docId));
+
+      long version = (long) checkpoint.getProperty("version") + 1;
+      rev = version + "-" + Integer.toHexString(document.hashCode());
+      stored.put("_id", docId);
+      stored.put("_rev", rev);
+
+      try {
+        checkpoint.setProperty("json", mapper.writeValueAsString(stored));
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Unable to serialize checkpoint " + docId, e);
+      }
+      checkpoint.setProperty("version", version);
+      tx.success();
+    }
+
+    return rev;
+  }
+
+  private String key(String database, String docId) {
+    return database + "/" + docId;
+  }
+}
@@ -0,0 +1,84 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.cypher.ExecutionEngine;
+import org.neo4j.cypher.ExecutionResult;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.kernel.InternalAbstractGraphDatabase;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One long lived cypher ExecutionEngine, shared by every request so the
+ * plans it builds are reused.
+ *
+ * Cypher doesn't expose its plan cache, so getStats can only estimate it:
+ * queries are counted against an LRU of query strings as big as that
+ * cache, and a query among the last planCacheSize distinct ones is assumed
+ * to be planned already. Cypher may still evict or replan on its own, so
+ * these are not the cache's real numbers. Plans are keyed by query text,
+ * which is why params should be used instead of literals.
+ */
+public class CypherEngine {
+
+  private final ExecutionEngine engine;
+
+  private final int planCacheSize;
+
+  private final LinkedHashMap<String, Boolean> planned;
+
+  private long estimatedHits = 0;
+  private long estimatedMisses = 0;
+
+  public CypherEngine(GraphDatabaseService graphDb) {
+    this.engine = new ExecutionEngine(graphDb, StringLogger.SYSTEM);
+    this.planCacheSize = getPlanCacheSize(graphDb);
+    this.planned = new LinkedHashMap<String, Boolean>(planCacheSize * 2, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > planCacheSize;
+      }
+    };
+  }
+
+  //the size ExecutionEngine gives its cache: query_cache_size, if the database has a config
+  private static int getPlanCacheSize(GraphDatabaseService graphDb) {
+    if(graphDb instanceof InternalAbstractGraphDatabase) {
+      Integer size = ((InternalAbstractGraphDatabase) graphDb).getConfig().get(GraphDatabaseSettings.query_cache_size);
+      if(size != null) {
+        return size;
+      }
+    }
+    return ExecutionEngine.DEFAULT_PLAN_CACHE_SIZE();
+  }
+
+  /**
+   * Run a query inside the caller's transaction.
+   */
+  public ExecutionResult execute(String query, Map<String, Object> params) {
+    synchronized (planned) {
+      if(planned.put(query, Boolean.TRUE) == null) {
+        estimatedMisses++;
+      } else {
+        estimatedHits++;
+      }
+    }
+    return engine.execute(query, params);
+  }
+
+  /**
+   * Estimated plan cache stats, see the class comment.
+   */
+  public Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    synchronized (planned) {
+      stats.put("entries", planned.size());
+      stats.put("capacity", planCacheSize);
+      stats.put("estimatedHits", estimatedHits);
+      stats.put("estimatedMisses", estimatedMisses);
+    }
+    return stats;
+  }
+}
@@ -0,0 +1,73 @@
+package com.findarecord.neo4j;
+
+/**
+ * Minimum distance from a point to a lon/lat rectangle.
+ */
+public enum DistanceMetric {
+
+  /**
+   * Euclidean distance in degrees, as used to rank shape queries.
+   */
+  PLANAR {
+    @Override
+    public double distance(double lon, double lat, double minLon, double maxLon, double minLat, double maxLat) {
+      double dx = Math.max(0, Math.max(minLon - lon, lon - maxLon));
+      double dy = Math.max(0, Math.max(minLat - lat, lat - maxLat));
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+  },
+
+  /**
+   * Great circle distance in km on a spherical earth.
+   */
+  GEODESIC {
+    @Override
+    public double distance(double lon, double lat, double minLon, double maxLon, double minLat, double maxLat) {
+      if(lon >= minLon && lon <= maxLon) {
+        //straight along the meridian
+        return haversine(lon, lat, lon, clamp(lat, minLat, maxLat));
+      }
+
+      //otherwise the closest point is on the nearer side meridian, which
+      //may be the one across the antimeridian
+      double edgeLon = Math.abs(wrap(lon - minLon)) <= Math.abs(wrap(lon - maxLon)) ? minLon : maxLon;
+      double closestLat = Math.toDegrees(Math.atan2(
+          Math.tan(Math.toRadians(lat)),
+          Math.cos(Math.toRadians(lon - edgeLon))));
+      //past 90 degrees away the closest point is over a pole, so outside
+      //the edge the nearer end is the nearer one around the circle
+      if(closestLat < minLat || closestLat > maxLat) {
+        closestLat = Math.abs(wrap(closestLat - minLat)) <= Math.abs(wrap(closestLat - maxLat)) ? minLat : maxLat;
+      }
+      return haversine(lon, lat, edgeLon, closestLat);
+    }
+  };
+
+  private final static double EARTH_RADIUS_KM = 6371.0088;
+
+  public abstract double distance(double lon, double lat, double minLon, double maxLon, double minLat, double maxLat);
+
+  public static double haversine(double lon1, double lat1, double lon2, double lat2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+        + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+    return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+  }
+
+  //a difference in degrees as the shorter way round, in [-180, 180]
+  private static double wrap(double dLon) {
+    dLon = dLon % 360;
+    if(dLon > 180) {
+      return dLon - 360;
+    }
+    if(dLon < -180) {
+      return dLon + 360;
+    }
+    return dLon;
+  }
+
+  private static double clamp(double value, double min, double max) {
+    return Math.max(min, Math.min(max, value));
+  }
+}
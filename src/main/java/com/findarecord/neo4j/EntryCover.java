@@ -0,0 +1,71 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Everything EntryIndex needs to know about an entry's geometry:
+ * a hash of its source, the centroid of each part and the cells the
+ * geometry covers.
+ *
+ * Centroids and cells are only computed on first use, or by compute().
+ * Computing them never touches the graph, so it can be done outside
+ * the transaction that writes them, and skipped entirely when the
+ * stored hash shows the geometry hasn't changed.
+ */
+public class EntryCover {
+
+  private Geometry geometry;
+
+  private long geoHash;
+
+  private double[] lons;
+
+  private double[] lats;
+
+  private long[] cells;
+
+  public EntryCover(Geometry geometry, long geoHash) {
+    this.geometry = geometry;
+    this.geoHash = geoHash;
+  }
+
+  public EntryCover compute() {
+    if(cells != null) {
+      return this;
+    }
+
+    int toIndex = geometry.getNumGeometries();
+    lons = new double[toIndex];
+    lats = new double[toIndex];
+
+    for(int i=0; i < toIndex; i++) {
+      Point centroid = geometry.getGeometryN(i).getCentroid();
+      lons[i] = centroid.getX();
+      lats[i] = centroid.getY();
+    }
+
+    cells = CellCover.cover(geometry);
+    return this;
+  }
+
+  public boolean isComputed() {
+    return cells != null;
+  }
+
+  public long getGeoHash() {
+    return geoHash;
+  }
+
+  public double[] getLons() {
+    return compute().lons;
+  }
+
+  public double[] getLats() {
+    return compute().lats;
+  }
+
+  public long[] getCells() {
+    return compute().cells;
+  }
+}
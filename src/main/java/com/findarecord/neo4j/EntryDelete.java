@@ -4,14 +4,8 @@ package com.findarecord.neo4j;
 
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.UniqueFactory;
-import org.neo4j.graphdb.traversal.Evaluation;
-import org.neo4j.graphdb.traversal.Evaluator;
-import org.neo4j.graphdb.traversal.Evaluators;
-import org.neo4j.graphdb.traversal.TraversalDescription;
 
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 public class EntryDelete {
 
@@ -19,11 +13,11 @@ public class EntryDelete {
 
   private Node entryNode;
 
-  private HashSet<String> incrementedNodes;
+  private Rollups rollups;
 
-  public EntryDelete(GraphDatabaseService graphDb) {
+  public EntryDelete(GraphDatabaseService graphDb, Rollups rollups) {
     this.graphDb = graphDb;
-    this.incrementedNodes = new HashSet<>();
+    this.rollups = rollups;
   }
 
   public void deleteEntry(String entryId) {
@@ -41,40 +35,18 @@ public class EntryDelete {
     entryNode = factory.getOrCreate("id", entryId);
 
     //decrement counters
-    //decrementNodes(entryNode);
+    long[] cells = (long[]) entryNode.getProperty("cells", null);
+    if(cells != null) {
+      rollups.remove(cells);
+    }
 
     //remove all old relationships
     for(Relationship rel: entryNode.getRelationships()) {
       rel.delete();
     }
+    //so the id can be indexed again in this transaction
+    graphDb.index().forNodes(Settings.NEO_ENTRY).remove(entryNode);
     entryNode.delete();
 
   }
-
-  public void decrementNodes(Node startNode) {
-    TraversalDescription traversal = graphDb.traversalDescription()
-        .breadthFirst()
-        .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK), Direction.OUTGOING)
-        .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.INCOMING)
-        .evaluator(getEvaluator());
-
-    for(Path path : traversal.traverse(startNode)) {
-      Integer count = (Integer) path.endNode().getProperty("count");
-      path.endNode().setProperty("count", count - 1);
-    }
-  }
-
-  private Evaluator getEvaluator() {
-    return new Evaluator() {
-      @Override
-      public Evaluation evaluate( final Path path )
-      {
-        if ( path.length() == 0 ) {
-          return Evaluation.EXCLUDE_AND_CONTINUE;
-        } else {
-          return Evaluation.INCLUDE_AND_CONTINUE;
-        }
-      }
-    };
-  }
 }
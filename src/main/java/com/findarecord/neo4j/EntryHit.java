@@ -0,0 +1,86 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.graphdb.Node;
+
+/**
+ * The properties of an Entry node that query ranking needs, read once
+ * into primitives so sorting never goes back to the node store.
+ */
+public class EntryHit {
+
+  private final long nodeId;
+
+  private final String collectionId;
+
+  private final int from;
+
+  private final int to;
+
+  private final double[] lons;
+
+  private final double[] lats;
+
+  public EntryHit(long nodeId, String collectionId, int from, int to, double[] lons, double[] lats) {
+    this.nodeId = nodeId;
+    this.collectionId = collectionId;
+    this.from = from;
+    this.to = to;
+    this.lons = lons;
+    this.lats = lats;
+  }
+
+  public static EntryHit load(Node entry) {
+    return new EntryHit(
+        entry.getId(),
+        (String) entry.getProperty("collection_id"),
+        (Integer) entry.getProperty("from"),
+        (Integer) entry.getProperty("to"),
+        (double[]) entry.getProperty("lons"),
+        (double[]) entry.getProperty("lats"));
+  }
+
+  /**
+   * Planar distance from the closest centroid to lon/lat.
+   */
+  public double distance(double lon, double lat) {
+    double distance = Double.MAX_VALUE;
+    for(int i = 0; i < lons.length; i++) {
+      double dx = lons[i] - lon;
+      double dy = lats[i] - lat;
+      double temp = Math.sqrt(dx * dx + dy * dy);
+      if(temp < distance) {
+        distance = temp;
+      }
+    }
+    return distance;
+  }
+
+  public long getNodeId() {
+    return nodeId;
+  }
+
+  public String getCollectionId() {
+    return collectionId;
+  }
+
+  public int getFrom() {
+    return from;
+  }
+
+  public int getTo() {
+    return to;
+  }
+
+  public double[] getLons() {
+    return lons;
+  }
+
+  public double[] getLats() {
+    return lats;
+  }
+
+  //rough heap cost, for HitCache's budget
+  int bytes() {
+    return 96 + 16 * lons.length + 2 * collectionId.length();
+  }
+}
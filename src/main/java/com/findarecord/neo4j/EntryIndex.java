@@ -3,14 +3,16 @@ package com.findarecord.neo4j;
 import com.vividsolutions.jts.geom.*;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.UniqueFactory;
 
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 
 
@@ -24,13 +26,55 @@ public class EntryIndex {
 
   private EntryDelete entryDelete;
 
-  public EntryIndex(GraphDatabaseService graphDb) {
+  private BoxWriter boxWriter;
+
+  private Rollups rollups;
+
+  private TagDictionary tagDictionary;
+
+  //tag codes created by this index, shared with the dictionary on commit
+  private HashMap<String, Integer> createdTags = new HashMap<>();
+
+  public EntryIndex(GraphDatabaseService graphDb, BoxCache boxCache, TagDictionary tagDictionary) {
     this.graphDb = graphDb;
+    this.tagDictionary = tagDictionary;
     //this.incrementedNodes = new HashSet<>();
-    this.entryDelete = new EntryDelete(graphDb);
+    this.boxWriter = new BoxWriter(graphDb, boxCache);
+    this.rollups = new Rollups(boxWriter);
+    this.entryDelete = new EntryDelete(graphDb, rollups);
+  }
+
+  /**
+   * Write the rollups of everything indexed or deleted so far.
+   * Call inside the transaction, before it succeeds.
+   */
+  public void flush() {
+    rollups.apply();
+  }
+
+  /**
+   * Call once the transaction this index wrote in has committed.
+   */
+  public void commit() {
+    boxWriter.commit();
+    tagDictionary.remember(createdTags);
+  }
+
+  public void deleteEntry(String entryId) {
+    entryDelete.deleteEntry(entryId);
   }
 
   public String indexEntry(String entryId, String collectionId, Integer from, Integer to, ArrayList<String> tags, String geoString) {
+    return indexEntry(entryId, collectionId, from, to, tags, cover(geoString), null);
+  }
+
+  /**
+   * Index an entry from its cover, see cover(String). If the entry exists
+   * and its geoHash is unchanged the cover is never computed, otherwise
+   * only the links that differ from its stored cover are rewritten.
+   * rev is the revision of the document being applied, if known.
+   */
+  public String indexEntry(String entryId, String collectionId, Integer from, Integer to, ArrayList<String> tags, EntryCover cover, String rev) {
     String ret = "";
     boolean wasNotCreated = false;
 
@@ -49,244 +93,163 @@ public class EntryIndex {
       wasNotCreated = true;
     }
     entryNode = uniqueNode.entity();
+    Object storedCollectionId = entryNode.getProperty("collection_id", null);
     entryNode.setProperty("collection_id", collectionId);
     entryNode.setProperty("from", from);
     entryNode.setProperty("to", to);
     //TODO make sure tags doesn't need a toArray()
     entryNode.setProperty("tags", tags.toArray(new String[tags.size()]));
+    int[] tagCodes = tagDictionary.getOrCreateCodes(graphDb, boxWriter.getRoot(), tags, createdTags);
+    entryNode.setProperty("tagCodes", tagCodes);
+    if(rev != null) {
+      entryNode.setProperty("rev", rev);
+    }
     entryNode.addLabel(DynamicLabel.label("Entry"));
 
 
-    //if node already existed, decrement counters and remove old relationships
+    //if node already existed, only touch what its new geometry changes
     if(wasNotCreated) {
-      //entryDelete.decrementNodes(entryNode);
-      //remove all old relationships
-      for(Relationship rel: entryNode.getRelationships()) {
-        rel.delete();
+      long[] storedCells = (long[]) entryNode.getProperty("cells", null);
+      Object storedHash = entryNode.getProperty("geoHash", null);
+
+      //links that are kept carry the collection too
+      if(storedCells != null && !collectionId.equals(storedCollectionId)) {
+        for(Relationship rel: entryNode.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.INCOMING)) {
+          rel.setProperty("collection_id", collectionId);
+        }
       }
 
+      if(storedCells == null) {
+        //indexed before covers were stored, rebuild it from scratch
+        for(Relationship rel: entryNode.getRelationships()) {
+          rel.delete();
+        }
+      } else if(storedHash != null && (Long) storedHash == cover.getGeoHash()) {
+        //same geometry, links and centroids are still right
+        rollups.touch(storedCells, from, to, tagCodes);
+        return ret;
+      } else {
+        rollups.move(storedCells, cover.getCells(), from, to, tagCodes);
+        return updateCover(storedCells, cover);
+      }
     }
 
-    //index the geojson
-    ret = indexGeoJSON(geoString);
+    //index the cover
+    rollups.add(cover.getCells(), from, to, tagCodes);
+    ret = indexCover(cover);
 
 
     return ret;
   }
 
   public String indexGeoJSON(String geoString) {
-    String ret = "";
+    return indexCover(cover(geoString));
+  }
+
+  /**
+   * Get the cover of a geojson string, or null if it can't be parsed.
+   * This doesn't touch the graph, so it is safe to call from any thread.
+   */
+  public static EntryCover cover(String geoString) {
     Geometry geometry = geoJSONtoGeometry(geoString);
-    Geometry nGeometry;
-    int toIndex = geometry.getNumGeometries();
-    double[] lons = new double[toIndex];
-    double[] lats = new double[toIndex];
-
-    for(int i=0; i < toIndex; i++) {
-      nGeometry = geometry.getGeometryN(i);
-      lons[i] = nGeometry.getCentroid().getX();
-      lats[i] = nGeometry.getCentroid().getY();
-      ret += indexGeometry(nGeometry);
+    if(geometry == null) {
+      return null;
     }
-    entryNode.setProperty("lons",lons);
-    entryNode.setProperty("lats",lats);
-
-
-    return ret;
+    return new EntryCover(geometry, GeoJSONReader.hash(geoString));
   }
 
-  private String indexGeometry(Geometry geometry) {
-
-    //index first level
-    return indexFirstLevel(geometry);
+  /**
+   * Get the cover of geojson already parsed by Jackson, or null if it
+   * isn't a geometry. Like cover(String) this is safe from any thread.
+   */
+  public static EntryCover cover(Map<String, Object> geojson) {
+    Geometry geometry = GeoJSONReader.read(geojson);
+    if(geometry == null) {
+      return null;
+    }
+    return new EntryCover(geometry, GeoJSONReader.hash(geojson));
   }
 
-  private String indexFirstLevel(Geometry geometryToIndex) {
-
-    String ret = "";
-
-    //get boxes for this level
-    ArrayList<Box> boxes = getFirstLevelBoxes();
-
-    //loop through boxes
-    for(Box box : boxes) {
-      //if geometryToIndex contains this boxes, insert and continue
-      if(geometryToIndex.contains(box.getPolygon())) {
-        ret += insertBox(box);
-        continue;
-      }
-
-      //if geometryToIndex intersects this boxes, recurse
-      if(geometryToIndex.intersects(box.getPolygon())) {
-        //ret += "intersect found:"+box.toString()+" || ";
-        //ret += "   "+box.getNodeId();
-        ret += indexNLevel(geometryToIndex, box.getLon(), box.getLat(), new BigDecimal(1), box.getIds());
+  /**
+   * Get the geoHash stored on each existing entry, in one read transaction.
+   * Entries that don't exist or were indexed without one are left out.
+   */
+  public static Map<String, Long> getGeoHashes(GraphDatabaseService graphDb, Collection<String> entryIds) {
+    Map<String, Long> hashes = new HashMap<>();
+    try ( Transaction tx = graphDb.beginTx() ) {
+      Index<Node> entries = graphDb.index().forNodes(Settings.NEO_ENTRY);
+      for(String entryId : entryIds) {
+        Node entry = entries.get("id", entryId).getSingle();
+        if(entry != null && entry.hasProperty("geoHash")) {
+          hashes.put(entryId, (Long) entry.getProperty("geoHash"));
+        }
       }
+      tx.success();
     }
-    return ret;
+    return hashes;
   }
 
-  private String indexNLevel(Geometry geometryToIndex, BigDecimal lon, BigDecimal lat, BigDecimal precision, ArrayList<String> ids) {
+  private String indexCover(EntryCover cover) {
     String ret = "";
 
-    //get boxes for this level
-    ArrayList<Box> boxes = getNLevelBoxes(lon, lat, precision, ids);
+    entryNode.setProperty("lons",cover.getLons());
+    entryNode.setProperty("lats",cover.getLats());
+    entryNode.setProperty("cells",cover.getCells());
+    entryNode.setProperty("geoHash",cover.getGeoHash());
 
-    //ret += "level "+lon+" "+lat+" "+precision+" - boxes="+boxes.size()+" || ";
+    //the full cover is known, write it in one pass
+    boxWriter.linkEntry(entryNode, cover.getCells());
 
-    //loop through boxes
-    for(Box box : boxes) {
-      //if geometryToIndex contains this boxes, insert and continue
-      if(geometryToIndex.contains(box.getPolygon())) {
-        ret += insertBox(box);
-        continue;
-      }
-
-      //ret += "box: "+box.toString()+" || ";
-
-      //if geometryToIndex intersects this boxes, recurse or stop
-      if(geometryToIndex.intersects(box.getPolygon())) {
-        //ret += "intersect found at depth "+precision+": "+box.toString()+" || ";
-        //if we are at our max depth, insert rather than recurse
-        if(precision.compareTo(Settings.DEPTH) <= 0) {
-          ret += insertBox(box);
-        } else {
-          //ret += "recursing: new precision is "+precision.divide(Settings.WIDTH)+" || ";
-          ret += indexNLevel(geometryToIndex, box.getLon(), box.getLat(), precision.divide(Settings.WIDTH), box.getIds());
-        }
-      }
-    }
     return ret;
   }
 
-  private ArrayList<Box> getFirstLevelBoxes() {
+  /**
+   * Move an entry from its stored cover to a new one, only unlinking
+   * the cells it left and linking the cells it entered.
+   */
+  private String updateCover(long[] storedCells, EntryCover cover) {
+    String ret = "";
+    long[] cells = cover.getCells();
 
-    ArrayList<Box> boxes = new ArrayList<>();
-    int precision = 10;
-    int fromLon = -180;
-    int toLon = 180;
-    int fromLat = -90;
-    int toLat = 90;
+    //covers are stored sorted, so both differences are a single merge
+    long[] removed = difference(storedCells, cells);
+    long[] added = difference(cells, storedCells);
 
-    for(int lon=fromLon;lon<toLon; lon = lon+precision) {
-      for(int lat=fromLat;lat<toLat; lat = lat+precision) {
-        boxes.add(new Box(new BigDecimal(lon),new BigDecimal(lat), new BigDecimal(precision), new ArrayList<String>()));
+    if(removed.length > 0) {
+      for(Relationship rel: entryNode.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.INCOMING)) {
+        long cell = Cell.fromNodeId((String) rel.getStartNode().getProperty("id"));
+        if(Arrays.binarySearch(removed, cell) >= 0) {
+          rel.delete();
+        }
       }
     }
+    boxWriter.linkEntry(entryNode, added);
 
-    return boxes;
-  }
-
-  private ArrayList<Box> getNLevelBoxes(BigDecimal fromLon, BigDecimal fromLat, BigDecimal precision,  ArrayList<String> ids) {
-    ArrayList<Box> boxes = new ArrayList<>();
-    BigDecimal toLat = fromLat.add(precision.multiply(Settings.WIDTH));
-    BigDecimal toLon = fromLon.add(precision.multiply(Settings.WIDTH));
-
-    for(BigDecimal lon=fromLon;lon.compareTo(toLon) < 0; lon = lon.add(precision)) {
-      for(BigDecimal lat=fromLat;lat.compareTo(toLat) < 0; lat = lat.add(precision)) {
-        boxes.add(new Box(lon,lat, precision, ids));
-      }
-    }
+    entryNode.setProperty("lons",cover.getLons());
+    entryNode.setProperty("lats",cover.getLats());
+    entryNode.setProperty("cells",cells);
+    entryNode.setProperty("geoHash",cover.getGeoHash());
 
-    return boxes;
+    return ret;
   }
 
-  private String insertBox(Box box) {
-
-
-
-    //get root node
-    UniqueFactory<Node> factory = new UniqueFactory.UniqueNodeFactory( graphDb, Settings.NEO_ROOT)
-    {
-      @Override
-      protected void initialize( Node created, Map<String, Object> properties )
-      {
-        created.setProperty( "id", properties.get( "id" ) );
-        //created.setProperty( "count", new Integer(0) );
-        //created.setProperty( "lastUpdated", new Long(0) );
-
-      }
-    };
-    Node fromNode = factory.getOrCreate("id", 0);
-
-    //increment count if we haven't seen this node before
-    /*
-    if(!incrementedNodes.contains("0")) {
-      Integer count = (Integer) fromNode.getProperty("count");
-      fromNode.setProperty("count", count+1);
-      fromNode.setProperty("lastUpdated", System.currentTimeMillis() / 1000l);
-      incrementedNodes.add("0");
-    }
-    */
-
-    String lastId = null;
-    ArrayList<String> ids = box.getIds();
-
-    UniqueFactory<Node> nodeFactory = new UniqueFactory.UniqueNodeFactory( graphDb, Settings.NEO_BOX )
-    {
-      @Override
-      protected void initialize( Node created, Map<String, Object> properties )
-      {
-        created.setProperty( "id", properties.get( "id" ) );
-        //created.setProperty( "count", new Integer(0) );
-        //created.setProperty( "lastUpdated", new Long(0) );
-      }
-    };
-
-    BigDecimal currentPrecision = new BigDecimal(10);
-
-    String idString = "";
-
-    for(String id: ids) {
-
-      idString += ":"+id;
-
-      lastId = id;
-
-      //create new node
-      Node toNode = nodeFactory.getOrCreate( "id", idString );
-
-      //increment count if we haven't seen this node before
-      /*
-      if(!incrementedNodes.contains(idString)) {
-        Integer count = (Integer) toNode.getProperty("count");
-        toNode.setProperty("count", count+1);
-        toNode.setProperty("lastUpdated", System.currentTimeMillis() / 1000l);
-        incrementedNodes.add(idString);
+  //cells of a that are not in b, both sorted
+  private static long[] difference(long[] a, long[] b) {
+    long[] result = new long[a.length];
+    int size = 0;
+    int j = 0;
+    for(long cell : a) {
+      while(j < b.length && b[j] < cell) {
+        j++;
       }
-      */
-
-      //create relationship
-      UniqueFactory.UniqueEntity<Relationship> rel = createRelationship(fromNode, toNode, "id", id, Settings.NEO_BOX_LINK_INDEX, Settings.NEO_BOX_LINK);
-      if(rel.wasCreated()) {
-
-        String[] idArr = id.split(",");
-
-        BigDecimal lon = new BigDecimal(idArr[0]);
-        BigDecimal lat = new BigDecimal(idArr[1]);
-
-        rel.entity().setProperty("minLon", lon.doubleValue());
-        rel.entity().setProperty("maxLon", lon.add(currentPrecision).doubleValue());
-        rel.entity().setProperty("minLat", lat.doubleValue());
-        rel.entity().setProperty("maxLat", lat.add(currentPrecision).doubleValue());
+      if(j == b.length || b[j] != cell) {
+        result[size++] = cell;
       }
-
-      //point fromNode to toNode
-      fromNode = toNode;
-      currentPrecision = currentPrecision.divide(Settings.WIDTH);
     }
-
-    //create relationship to entry Node
-    fromNode.createRelationshipTo(entryNode, DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT));
-    //UniqueFactory.UniqueEntity<Relationship> colRel = createRelationship(fromNode, entryNode, "id", lastId, Settings.NEO_BOX_INTERSECT_INDEX, Settings.NEO_BOX_INTERSECT);
-
-
-    //return ids.toString();
-    return "";
-
+    return Arrays.copyOf(result, size);
   }
 
-  private Geometry geoJSONtoGeometry(String geoString) {
+  private static Geometry geoJSONtoGeometry(String geoString) {
     Geometry geometry;
     GeometryJSON gJSON = new GeometryJSON(15); //15 precision
     Reader reader = new StringReader(geoString);
@@ -300,17 +263,5 @@ public class EntryIndex {
     return geometry;
   }
 
-  private UniqueFactory.UniqueEntity<Relationship> createRelationship(final Node start, final Node end, String indexableKey, final String indexableValue, String indexName, final String relName) {
-
-    UniqueFactory<Relationship> factory = new UniqueFactory.UniqueRelationshipFactory(graphDb, indexName) {
-      @Override
-      protected Relationship create(Map<String, Object> properties) {
-        return end.createRelationshipTo(start, DynamicRelationshipType.withName(relName));
-      }
-    };
-
-    return factory.getOrCreateWithOutcome(indexableKey, indexableValue);
-  }
-
 
 }
@@ -1,10 +1,11 @@
 package com.findarecord.neo4j;
 
 import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.geotools.referencing.GeodeticCalculator;
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.index.UniqueFactory;
 import org.neo4j.graphdb.traversal.Evaluation;
 import org.neo4j.graphdb.traversal.Evaluator;
 import org.neo4j.graphdb.traversal.Evaluators;
@@ -15,6 +16,7 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,11 +26,48 @@ public class EntryQuery {
   private static final Logger logger = LoggerFactory.getLogger(QueryServer.class);
   private GraphDatabaseService graphDb;
 
-  public EntryQuery(GraphDatabaseService graphDb) {
+  private BoxCache boxCache;
+
+  private HitCache hitCache;
+
+  private QueryExecutor queryExecutor;
+
+  private TagDictionary tagDictionary;
+
+  private BoxReplica replica;
+
+  /**
+   * Receives query results in rank order, as they are found.
+   */
+  public interface IdWriter {
+    void write(String collectionId) throws IOException;
+  }
+
+  public EntryQuery(GraphDatabaseService graphDb, BoxCache boxCache, HitCache hitCache, QueryExecutor queryExecutor, TagDictionary tagDictionary, BoxReplica replica) {
     this.graphDb = graphDb;
+    this.boxCache = boxCache;
+    this.hitCache = hitCache;
+    this.queryExecutor = queryExecutor;
+    this.tagDictionary = tagDictionary;
+    this.replica = replica;
   }
 
   public ArrayList<String> queryPolygon(String geoString, Integer from, Integer to, ArrayList<String> tags, Integer depth, Integer count, Integer offset) {
+    return queryPolygon(geoString, from, to, tags, depth, count, offset, false, 1, false);
+  }
+
+  /**
+   * With precise set, boxes are checked against the shape itself rather
+   * than only its bounding envelope. parallelism is the number of tasks
+   * the BOX tree is split over, capped by the QueryExecutor.
+   *
+   * With collapse set, entries of a collection already among the best
+   * offset+count are skipped without being loaded, so a collection ranks
+   * by the first of its entries the traversal reaches rather than its
+   * best one. A page then costs about as much as the distinct collections
+   * in the shape, however many entries each of them has.
+   */
+  public ArrayList<String> queryPolygon(String geoString, Integer from, Integer to, ArrayList<String> tags, Integer depth, Integer count, Integer offset, boolean precise, int parallelism, boolean collapse) {
     ArrayList<String> entryIDs = new ArrayList<>();
 
     //get geometry
@@ -36,13 +75,27 @@ public class EntryQuery {
 
     //if we have a valid geometry, query it
     if(geometry != null) {
-      entryIDs = queryGeometry(geometry, from, to, tags, depth, count, offset);
+      entryIDs = queryGeometry(geometry, from, to, tags, depth, count, offset, precise, parallelism, collapse);
     }
 
     return entryIDs;
   }
 
+  /**
+   * Like queryPolygon, for a shape that is already parsed.
+   */
+  public ArrayList<String> queryPolygon(Geometry geometry, Integer from, Integer to, ArrayList<String> tags, Integer depth, Integer count, Integer offset, boolean precise, int parallelism, boolean collapse) {
+    if(geometry == null) {
+      return new ArrayList<>();
+    }
+    return queryGeometry(geometry, from, to, tags, depth, count, offset, precise, parallelism, collapse);
+  }
+
   public ArrayList<String> queryDistance(double lon, double lat, double radius, Integer from, Integer to, ArrayList<String> tags, Integer depth, Integer count, Integer offset) {
+    return queryDistance(lon, lat, radius, from, to, tags, depth, count, offset, false, 1, false);
+  }
+
+  public ArrayList<String> queryDistance(double lon, double lat, double radius, Integer from, Integer to, ArrayList<String> tags, Integer depth, Integer count, Integer offset, boolean precise, int parallelism, boolean collapse) {
     ArrayList<String> entryIDs;
 
     //create calculator to get/set the radius correctly
@@ -64,7 +117,7 @@ public class EntryQuery {
     Polygon circle = new GeometryFactory().createPolygon( ring, null );
 
     //perform query
-    entryIDs = queryGeometry(circle, from, to, tags, depth, count, offset);
+    entryIDs = queryGeometry(circle, from, to, tags, depth, count, offset, precise, parallelism, collapse);
 
     Envelope envelope = circle.getEnvelopeInternal();
 
@@ -73,82 +126,285 @@ public class EntryQuery {
     return entryIDs;
   }
 
-  private ArrayList<String> queryGeometry(Geometry geometry, Integer from, Integer to, ArrayList<String> tags, Integer depth, Integer count, Integer offset) {
+  /**
+   * The nearest collections to lon/lat, by best-first search over the BOX tree.
+   *
+   * Boxes are expanded in order of their distance to the point, so the
+   * search stops as soon as offset+count collections are found. An entry
+   * is as far as the nearest cell it covers, which is its distance at
+   * cell resolution. radius, if not null, caps the distance, in degrees
+   * for the planar metric and km for the geodesic one. Once an entry of a
+   * collection is queued, no later one can be nearer, so the rest of its
+   * entries are skipped by the collection_id on their links.
+   */
+  public ArrayList<String> queryNearest(double lon, double lat, Double radius, DistanceMetric metric, Integer from, Integer to, ArrayList<String> tags, Integer count, Integer offset) {
+    final ArrayList<String> entryIDs = new ArrayList<>();
+    try {
+      queryNearest(lon, lat, radius, metric, from, to, tags, count, offset, new IdWriter() {
+        @Override
+        public void write(String collectionId) {
+          entryIDs.add(collectionId);
+        }
+      });
+    } catch (IOException e) {
+      //adding to a list doesn't throw
+    }
+    return entryIDs;
+  }
+
+  /**
+   * Like queryNearest, handing each collection id to writer as soon as
+   * it is found, so nothing but the search frontier is held in memory.
+   */
+  public void queryNearest(double lon, double lat, Double radius, DistanceMetric metric, Integer from, Integer to, ArrayList<String> tags, Integer count, Integer offset, IdWriter writer) throws IOException {
+    BoxReplica.View view = replica == null ? null : replica.getView();
+    if(view != null) {
+      view.queryNearest(lon, lat, radius, metric, from, to, getTagCodes(tags), count, offset, writer);
+      return;
+    }
+
+    Set<String> tagSet = new HashSet<>(tags);
+    int end = offset+count;
+
+    try(Transaction tx = graphDb.beginTx()) {
+
+      PriorityQueue<Candidate> queue = new PriorityQueue<>();
+      HashSet<Long> seenEntries = new HashSet<>();
+      HashSet<String> collectionIds = new HashSet<>();
+      //collections with an entry queued, no later entry of theirs can be nearer
+      HashSet<String> queuedCollections = new HashSet<>();
+      long order = 0;
+      int i = 0;
+
+      Node root = boxCache.getRoot(graphDb);
+      boolean temporal = Rollups.hasTemporalSummaries(root);
+      int[] tagCodes = tagSet.isEmpty() ? null : tagDictionary.getCodes(graphDb, tagSet);
+      boolean tagged = tagCodes != null && Rollups.hasTagSummaries(root);
+      queue.add(new Candidate(root, 0, false, order++));
+
+      while(!queue.isEmpty() && i < end) {
+        Candidate candidate = queue.poll();
+        if(radius != null && candidate.distance > radius) {
+          break;
+        }
+
+        if(candidate.entry) {
+          String collectionId = (String) candidate.node.getProperty("collection_id");
+          if(collectionIds.add(collectionId)) {
+            if(i >= offset) {
+              writer.write(collectionId);
+            }
+            i++;
+          }
+          continue;
+        }
+
+        //child boxes, bounded by their link
+        for(Relationship rel : candidate.node.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK), Direction.INCOMING)) {
+          if(temporal && !Rollups.mayOverlap(rel.getStartNode(), from, to)) {
+            continue;
+          }
+          if(tagged && !Rollups.mayHaveTags(rel.getStartNode(), tagCodes)) {
+            continue;
+          }
+          double distance = metric.distance(lon, lat,
+              (double) rel.getProperty("minLon"),
+              (double) rel.getProperty("maxLon"),
+              (double) rel.getProperty("minLat"),
+              (double) rel.getProperty("maxLat"));
+          queue.add(new Candidate(rel.getStartNode(), Math.max(distance, candidate.distance), false, order++));
+        }
+
+        //entries first reached here are exactly as far as this box
+        for(Relationship rel : candidate.node.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.OUTGOING)) {
+          String collectionId = (String) rel.getProperty("collection_id", null);
+          if(collectionId != null && queuedCollections.contains(collectionId)) {
+            continue;
+          }
+          Node entry = rel.getEndNode();
+          if(seenEntries.add(entry.getId()) && matches(entry, from, to, tagSet, tagCodes)) {
+            queue.add(new Candidate(entry, candidate.distance, true, order++));
+            queuedCollections.add(collectionId != null ? collectionId : (String) entry.getProperty("collection_id"));
+          }
+        }
+      }
+
+      tx.success();
+    }
+  }
+
+  private boolean matches(Node entry, int from, int to, Set<String> tags, int[] tagCodes) {
+    if(from > (int)entry.getProperty("to") || to < (int)entry.getProperty("from")) {
+      return false;
+    }
+    return hasTags(entry, tags, tagCodes);
+  }
+
+  /**
+   * Whether an entry has one of tags, by code when it has them.
+   */
+  private static boolean hasTags(Node entry, Set<String> tags, int[] tagCodes) {
+    if(tags.size() == 0) {
+      return true;
+    }
+    int[] entryCodes = (int[]) entry.getProperty("tagCodes", null);
+    if(entryCodes != null) {
+      return TagDictionary.intersects(entryCodes, tagCodes);
+    }
+    //indexed before tags had codes
+    for(String nodeTag : (String[])entry.getProperty("tags")) {
+      if(tags.contains(nodeTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ArrayList<String> queryGeometry(Geometry geometry, Integer from, Integer to, ArrayList<String> tags, Integer depth, Integer count, Integer offset, boolean precise, int parallelism, boolean collapse) {
     ArrayList<String> entryIDs = new ArrayList<>();
 
     //create bounding envelope
     Envelope envelope = geometry.getEnvelopeInternal();
 
-    //get min and max latitude
-    double minLon = envelope.getMinX();
-    double maxLon = envelope.getMaxX();
-    double minLat = envelope.getMinY();
-    double maxLat = envelope.getMaxY();
+    //in precise mode boxes are also checked against the shape
+    PreparedGeometry prepared = precise ? PreparedGeometryFactory.prepare(geometry) : null;
+
+    //keep only the best offset+count collections while streaming hits
+    Comparator<EntryHit> comparator = getComparator(from, to, geometry.getCentroid());
+    HitSelector selector = new HitSelector(comparator, offset+count);
+
+    //the replica is fast enough without splitting the tree
+    BoxReplica.View view = replica == null ? null : replica.getView();
+    if(view != null) {
+      view.queryGeometry(envelope, from, to, getTagCodes(tags), depth, prepared, selector, collapse);
+      entryIDs.addAll(selector.getCollectionIds(offset));
+      return entryIDs;
+    }
 
     //perform query
     try(Transaction tx = graphDb.beginTx()) {
 
-      UniqueFactory<Node> factory = new UniqueFactory.UniqueNodeFactory( graphDb, Settings.NEO_ROOT)
-      {
-        @Override
-        protected void initialize( Node created, Map<String, Object> properties )
-        {
-          created.setProperty( "id", properties.get( "id" ) );
-        }
-      };
-      Node start = factory.getOrCreate("id", 0);
+      Node start = boxCache.getRoot(graphDb);
       //Node start = graphDb.getNodeById(0);
-      TraversalDescription traversal = graphDb.traversalDescription()
-          .breadthFirst()
-          .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK),Direction.INCOMING)
-          .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT),Direction.OUTGOING)
-              //only traverse paths in our bounding box
-          .evaluator(getEvaluator(minLon, maxLon, minLat, maxLat, from, to, new HashSet<>(tags), depth))
-              //only return entries
-          .evaluator(Evaluators.includeWhereLastRelationshipTypeIs(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT)));
-
-      List<Node> hits = new ArrayList<>();
-
-      for(Path path : traversal.traverse(start)) {
-        hits.add(path.endNode());
+
+      if(parallelism <= 1) {
+        for(Path path : getTraversal(envelope, from, to, tags, depth, prepared, 0, new HashSet<Long>(), collapse ? selector : null).traverse(start)) {
+          if(isEntry(path)) {
+            selector.add(hitCache.get(path.endNode()));
+          }
+        }
+      } else {
+        //walk the top of the tree here a level at a time, each level from the boxes
+        //of the one above, until there are enough subtrees to give every task a few
+        int split = 0;
+        List<Node> frontier = Collections.singletonList(start);
+        HashSet<Long> insideBoxes = new HashSet<>();
+        HashSet<Long> entries = new HashSet<>();
+        do {
+          List<Node> next = new ArrayList<>();
+          for(Path path : getTraversal(envelope, from, to, tags, depth, prepared, split, insideBoxes, collapse ? selector : null).evaluator(Evaluators.toDepth(1)).traverse(frontier.toArray(new Node[frontier.size()]))) {
+            if(isEntry(path)) {
+              //an entry in boxes of several levels is only kept once
+              if(entries.add(path.endNode().getId())) {
+                selector.add(hitCache.get(path.endNode()));
+              }
+            } else if(path.length() == 1) {
+              next.add(path.endNode());
+            }
+          }
+          frontier = next;
+          split++;
+        } while(!frontier.isEmpty() && frontier.size() < parallelism * QueryExecutor.SUBTREES_PER_TASK && split + 1 < depth && split <= Cell.MAX_LEVEL);
+
+        List<Long> subtrees = new ArrayList<>();
+        for(Node box : frontier) {
+          subtrees.add(box.getId());
+        }
+
+        //then hand the subtrees below out to the executor, each task in its own transaction
+        List<Callable<HitSelector>> tasks = new ArrayList<>();
+        for(List<Long> part : QueryExecutor.partition(subtrees, parallelism)) {
+          tasks.add(getSubtreeTask(part, split, insideBoxes, envelope, from, to, tags, depth, prepared, comparator, offset+count, collapse));
+        }
+        for(HitSelector partial : queryExecutor.invokeAll(tasks)) {
+          selector.addAll(partial);
+        }
       }
 
-      Collections.sort(hits, getComparator(from, to, geometry.getCentroid()));
+      entryIDs.addAll(selector.getCollectionIds(offset));
+      tx.success();
+    }
 
-      int i = 0;
-      int end = offset+count;
-      HashSet<String> collectionIds = new HashSet<>();
-      String collectionId;
-      //loop through our results
-      for(Node entry: hits) {
-
-        //make sure we haven't seen this collection before
-        collectionId = (String) entry.getProperty("collection_id");
-        if(!collectionIds.contains(collectionId)) {
-          //add collection we have seen to our hashset
-          collectionIds.add(collectionId);
-
-          //if we are in range of our query, add to result
-          if(i >= offset && i < end) {
-            entryIDs.add(collectionId);
+    return entryIDs;
+  }
+
+  private Callable<HitSelector> getSubtreeTask(final List<Long> subtrees, final int startDepth, final Set<Long> insideBoxes, final Envelope envelope, final Integer from, final Integer to, final ArrayList<String> tags, final Integer depth, final PreparedGeometry prepared, final Comparator<EntryHit> comparator, final int size, final boolean collapse) {
+    return new Callable<HitSelector>() {
+      @Override
+      public HitSelector call() {
+        HitSelector selector = new HitSelector(comparator, size);
+        try(Transaction tx = graphDb.beginTx()) {
+          for(Long id : subtrees) {
+            //a subtree below a box inside the shape is inside too
+            HashSet<Long> inside = new HashSet<>();
+            if(insideBoxes.contains(id)) {
+              inside.add(id);
+            }
+            for(Path path : getTraversal(envelope, from, to, tags, depth, prepared, startDepth, inside, collapse ? selector : null).traverse(graphDb.getNodeById(id))) {
+              if(isEntry(path)) {
+                selector.add(hitCache.get(path.endNode()));
+              }
+            }
           }
-          i++;
+          tx.success();
         }
+        return selector;
       }
+    };
+  }
+
+  /**
+   * Boxes and entries in the query, from a box startDepth below ROOT.
+   * Entries of collections already in collapseInto are left out, if given.
+   */
+  private TraversalDescription getTraversal(Envelope envelope, Integer from, Integer to, ArrayList<String> tags, Integer depth, PreparedGeometry prepared, int startDepth, HashSet<Long> insideBoxes, HitSelector collapseInto) {
+    Node root = boxCache.getRoot(graphDb);
+    int[] tagCodes = tags.isEmpty() ? null : tagDictionary.getCodes(graphDb, tags);
+    return graphDb.traversalDescription()
+        .breadthFirst()
+        .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK),Direction.INCOMING)
+        .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT),Direction.OUTGOING)
+            //only traverse paths in our bounding box
+        .evaluator(getEvaluator(envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY(), from, to, new HashSet<>(tags), tagCodes, depth, prepared, startDepth, insideBoxes, Rollups.hasTemporalSummaries(root), Rollups.hasTagSummaries(root), collapseInto));
+  }
+
+  //codes of the tags asked for, null if none were
+  private int[] getTagCodes(ArrayList<String> tags) {
+    if(tags.isEmpty()) {
+      return null;
+    }
+    int[] tagCodes;
+    try(Transaction tx = graphDb.beginTx()) {
+      tagCodes = tagDictionary.getCodes(graphDb, tags);
       tx.success();
     }
+    return tagCodes;
+  }
 
-    return entryIDs;
+  private static boolean isEntry(Path path) {
+    return path.length() > 0 && path.lastRelationship().isType(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT));
   }
 
-  private Comparator<Node> getComparator(final Integer from, final Integer to, final Geometry centroid) {
-    return new Comparator<Node>() {
+  private Comparator<EntryHit> getComparator(final Integer from, final Integer to, final Point centroid) {
+    final double lon = centroid.getX();
+    final double lat = centroid.getY();
+    return new Comparator<EntryHit>() {
       @Override
-      public int compare(Node node1, Node node2) {
+      public int compare(EntryHit node1, EntryHit node2) {
 
         //compare distances
-        double node1Distance = getDistance(node1,centroid);
-        double node2Distance = getDistance(node2,centroid);
+        double node1Distance = node1.distance(lon, lat);
+        double node2Distance = node2.distance(lon, lat);
 
         if(node1Distance < node2Distance) {
           return -1;
@@ -171,38 +427,20 @@ public class EntryQuery {
           return 1;
         }
 
-        if(node1.getId()>node2.getId()) {
+        if(node1.getNodeId()>node2.getNodeId()) {
           return -1;
-        } else {
+        }
+        if(node1.getNodeId()<node2.getNodeId()) {
           return 1;
         }
+        return 0;
       }
     };
   }
 
-  public double getDistance(Node node, Geometry centroid) {
-    double distance = Double.MAX_VALUE;
-
-    //get array of lats and lons
-    double[] lons = (double[]) node.getProperty("lons");
-    double[] lats = (double[]) node.getProperty("lats");
-    double temp;
-
-    //loop through and set the lowest distance
-    for(int i=0;i<lats.length;i++) {
-      Coordinate coord = new Coordinate(lons[i], lats[i]);
-      temp = centroid.distance(new GeometryFactory().createPoint(coord));
-      if(temp < distance) {
-        distance = temp;
-      }
-    }
-
-    return distance;
-  }
-
-  private int getDateRange(Node node, Integer from, Integer to) {
-    Integer nodeFrom = (Integer)node.getProperty("from");
-    Integer nodeTo = (Integer)node.getProperty("to");
+  private int getDateRange(EntryHit node, Integer from, Integer to) {
+    int nodeFrom = node.getFrom();
+    int nodeTo = node.getTo();
     int nodeSize;
     if(nodeFrom < from && nodeTo > to) {
       nodeSize = from - to;
@@ -221,7 +459,13 @@ public class EntryQuery {
     return nodeSize;
   }
 
-  private Evaluator getEvaluator(final double minLon, final double maxLon, final double minLat, final double maxLat,final int from, final int to, final Set<String> tags, final Integer depth) {
+  /**
+   * insideBoxes collects boxes found to be inside the shape in precise
+   * mode, nothing below them needs checking.
+   */
+  private Evaluator getEvaluator(final double minLon, final double maxLon, final double minLat, final double maxLat,final int from, final int to, final Set<String> tags, final int[] tagCodes, final Integer depth, final PreparedGeometry prepared, final int startDepth, final HashSet<Long> insideBoxes, final boolean temporal, final boolean tagged, final HitSelector collapseInto) {
+    final GeometryFactory geometryFactory = new GeometryFactory();
+
     return new Evaluator() {
       @Override
       public Evaluation evaluate( final Path path )
@@ -234,12 +478,21 @@ public class EntryQuery {
         boolean includeAndContinue = true;
 
         //if we are at maximum depth
-        if(path.length() > depth) {
+        if(path.length() + startDepth > depth) {
           return Evaluation.EXCLUDE_AND_PRUNE;
         }
 
         //if outside our boundary, exclude and prune, else include and continue
         Relationship rel = path.lastRelationship();
+
+        //a collection already kept, told by the link without loading the entry
+        if(collapseInto != null && rel.isType(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT))) {
+          Object collectionId = rel.getProperty("collection_id", null);
+          if(collectionId != null && collapseInto.contains((String) collectionId)) {
+            return Evaluation.EXCLUDE_AND_PRUNE;
+          }
+        }
+
         Node node = path.endNode();
         if(rel.isType(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK))
             && (maxLon < (double)rel.getProperty("minLon")
@@ -250,26 +503,38 @@ public class EntryQuery {
             ) {
           includeAndContinue = false;
         }
-        //if(rel.isType(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT))) {
-        if(node.hasLabel(DynamicLabel.label( "Entry" ))) {
-          boolean hasTags = false;
-
-          //if we were passed in no tags, don't check them
-          if(tags.size() == 0) {
-            hasTags = true;
-            //else loop through the node's tags and make sure they match
+        //skip subtrees with no entries in [from, to], without loading any of them
+        if(includeAndContinue && temporal && rel.isType(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK))
+            && !Rollups.mayOverlap(node, from, to)) {
+          includeAndContinue = false;
+        }
+        //same for subtrees without any of our tags
+        if(includeAndContinue && tagged && tagCodes != null && rel.isType(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK))
+            && !Rollups.mayHaveTags(node, tagCodes)) {
+          includeAndContinue = false;
+        }
+        //refine boxes on the boundary of the envelope against the shape itself
+        if(includeAndContinue && prepared != null && rel.isType(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK))) {
+          if(insideBoxes.contains(rel.getEndNode().getId())) {
+            insideBoxes.add(node.getId());
           } else {
-            String[] nodeTags = (String[])node.getProperty("tags");
-            for(String nodeTag:nodeTags) {
-              if(tags.contains(nodeTag)) {
-                hasTags = true;
-              }
+            Geometry box = geometryFactory.toGeometry(new Envelope(
+                (double)rel.getProperty("minLon"),
+                (double)rel.getProperty("maxLon"),
+                (double)rel.getProperty("minLat"),
+                (double)rel.getProperty("maxLat")));
+            if(!prepared.intersects(box)) {
+              includeAndContinue = false;
+            } else if(prepared.contains(box)) {
+              insideBoxes.add(node.getId());
             }
           }
-
+        }
+        //if(rel.isType(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT))) {
+        if(node.hasLabel(DynamicLabel.label( "Entry" ))) {
           if(from > (int)node.getProperty("to")
               || to < (int)node.getProperty("from")
-              || !hasTags) {
+              || !hasTags(node, tags, tagCodes)) {
             includeAndContinue = false;
           }
         }
@@ -285,6 +550,39 @@ public class EntryQuery {
     };
   }
 
+  /**
+   * A box or entry waiting in the nearest queue. Entries come before boxes
+   * at the same distance, then everything is first in, first out.
+   */
+  private static class Candidate implements Comparable<Candidate> {
+
+    private final Node node;
+
+    private final double distance;
+
+    private final boolean entry;
+
+    private final long order;
+
+    private Candidate(Node node, double distance, boolean entry, long order) {
+      this.node = node;
+      this.distance = distance;
+      this.entry = entry;
+      this.order = order;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      if(distance != other.distance) {
+        return distance < other.distance ? -1 : 1;
+      }
+      if(entry != other.entry) {
+        return entry ? -1 : 1;
+      }
+      return order < other.order ? -1 : (order > other.order ? 1 : 0);
+    }
+  }
+
   private Geometry geoJSONtoGeometry(String geoString) {
     Geometry geometry;
     GeometryJSON gJSON = new GeometryJSON(15); //15 precision
@@ -0,0 +1,251 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds JTS geometries straight from a geojson tree parsed by Jackson,
+ * so geojson that is already parsed doesn't go through a String again.
+ */
+public class GeoJSONReader {
+
+  private final static GeometryFactory geometryFactory = new GeometryFactory();
+
+  private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+  private final static long FNV_PRIME = 0x100000001b3L;
+
+  private GeoJSONReader(){}
+
+  /**
+   * Read a geojson geometry, or return null if it isn't one we understand.
+   */
+  public static Geometry read(Object geojson) {
+    try {
+      return readGeometry(geojson);
+    } catch (ClassCastException | IllegalArgumentException | IndexOutOfBoundsException | NullPointerException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Read a geojson geometry from a parser positioned at its START_OBJECT,
+   * leaving it at the matching END_OBJECT. Positions become coordinates
+   * as they are parsed, so no tree of boxed numbers is built on the way.
+   * Returns null for geometries we don't understand.
+   */
+  public static Geometry read(JsonParser parser) throws IOException {
+    return read(readObject(parser));
+  }
+
+  private static Map<String, Object> readObject(JsonParser parser) throws IOException {
+    if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return null;
+    }
+    Map<String, Object> map = new HashMap<>();
+    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken token = parser.nextToken();
+      if(name.equals("type") && token == JsonToken.VALUE_STRING) {
+        map.put(name, parser.getText());
+      } else if(name.equals("coordinates")) {
+        map.put(name, readPositions(parser));
+      } else if(name.equals("geometries") && token == JsonToken.START_ARRAY) {
+        List<Object> geometries = new ArrayList<>();
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+          geometries.add(readObject(parser));
+        }
+        map.put(name, geometries);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return map;
+  }
+
+  //nested arrays of positions, with each position read as a Coordinate
+  private static Object readPositions(JsonParser parser) throws IOException {
+    if(parser.getCurrentToken() != JsonToken.START_ARRAY) {
+      parser.skipChildren();
+      return null;
+    }
+    JsonToken token = parser.nextToken();
+    if(token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+      double[] ordinates = new double[3];
+      int size = 0;
+      while(token != JsonToken.END_ARRAY) {
+        if(size < 3) {
+          ordinates[size++] = parser.getDoubleValue();
+        }
+        token = parser.nextToken();
+      }
+      if(size < 2) {
+        return null;
+      }
+      return size > 2 ? new Coordinate(ordinates[0], ordinates[1], ordinates[2]) : new Coordinate(ordinates[0], ordinates[1]);
+    }
+    List<Object> members = new ArrayList<>();
+    while(token != JsonToken.END_ARRAY) {
+      members.add(readPositions(parser));
+      token = parser.nextToken();
+    }
+    return members;
+  }
+
+  /**
+   * 64 bit FNV-1a hash of a geojson tree (or string), used to tell
+   * whether an entry's geometry changed without computing its cover.
+   */
+  public static long hash(Object geojson) {
+    return hash(FNV_OFFSET, geojson);
+  }
+
+  private static long hash(long hash, Object value) {
+    if(value instanceof Map) {
+      //key order doesn't change the geometry
+      hash = mix(hash, '{');
+      for(Map.Entry<String, Object> entry : new TreeMap<>((Map<String, Object>) value).entrySet()) {
+        hash = hash(hash, entry.getKey());
+        hash = hash(hash, entry.getValue());
+      }
+      return mix(hash, '}');
+    }
+    if(value instanceof List) {
+      hash = mix(hash, '[');
+      for(Object member : (List<Object>) value) {
+        hash = hash(hash, member);
+      }
+      return mix(hash, ']');
+    }
+    if(value instanceof Number) {
+      hash = mix(hash, '#');
+      long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+      for(int shift = 0; shift < 64; shift += 8) {
+        hash = mix(hash, (int) (bits >>> shift));
+      }
+      return hash;
+    }
+
+    String string = String.valueOf(value);
+    hash = mix(hash, '"');
+    for(int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      hash = mix(hash, c);
+      hash = mix(hash, c >>> 8);
+    }
+    return mix(hash, '"');
+  }
+
+  private static long mix(long hash, int octet) {
+    return (hash ^ (octet & 0xff)) * FNV_PRIME;
+  }
+
+  private static Geometry readGeometry(Object geojson) {
+    if(!(geojson instanceof Map)) {
+      return null;
+    }
+    Map<String, Object> map = (Map<String, Object>) geojson;
+    Object type = map.get("type");
+    Object coordinates = map.get("coordinates");
+
+    if("GeometryCollection".equals(type)) {
+      List<Object> members = (List<Object>) map.get("geometries");
+      Geometry[] geometries = new Geometry[members.size()];
+      for(int i = 0; i < geometries.length; i++) {
+        geometries[i] = readGeometry(members.get(i));
+        if(geometries[i] == null) {
+          return null;
+        }
+      }
+      return geometryFactory.createGeometryCollection(geometries);
+    }
+
+    if(coordinates == null) {
+      return null;
+    }
+
+    switch (String.valueOf(type)) {
+      case "Point":
+        return readPoint(coordinates);
+      case "MultiPoint":
+        List<Object> points = (List<Object>) coordinates;
+        Point[] pointArray = new Point[points.size()];
+        for(int i = 0; i < pointArray.length; i++) {
+          pointArray[i] = readPoint(points.get(i));
+        }
+        return geometryFactory.createMultiPoint(pointArray);
+      case "LineString":
+        return geometryFactory.createLineString(readCoordinates(coordinates));
+      case "MultiLineString":
+        List<Object> lines = (List<Object>) coordinates;
+        LineString[] lineArray = new LineString[lines.size()];
+        for(int i = 0; i < lineArray.length; i++) {
+          lineArray[i] = geometryFactory.createLineString(readCoordinates(lines.get(i)));
+        }
+        return geometryFactory.createMultiLineString(lineArray);
+      case "Polygon":
+        return readPolygon(coordinates);
+      case "MultiPolygon":
+        List<Object> polygons = (List<Object>) coordinates;
+        Polygon[] polygonArray = new Polygon[polygons.size()];
+        for(int i = 0; i < polygonArray.length; i++) {
+          polygonArray[i] = readPolygon(polygons.get(i));
+        }
+        return geometryFactory.createMultiPolygon(polygonArray);
+      default:
+        return null;
+    }
+  }
+
+  private static Point readPoint(Object coordinates) {
+    return geometryFactory.createPoint(readCoordinate(coordinates));
+  }
+
+  private static Polygon readPolygon(Object coordinates) {
+    List<Object> rings = (List<Object>) coordinates;
+    LinearRing shell = geometryFactory.createLinearRing(readCoordinates(rings.get(0)));
+    LinearRing[] holes = new LinearRing[rings.size() - 1];
+    for(int i = 0; i < holes.length; i++) {
+      holes[i] = geometryFactory.createLinearRing(readCoordinates(rings.get(i + 1)));
+    }
+    return geometryFactory.createPolygon(shell, holes);
+  }
+
+  private static Coordinate[] readCoordinates(Object coordinates) {
+    List<Object> list = (List<Object>) coordinates;
+    Coordinate[] coords = new Coordinate[list.size()];
+    for(int i = 0; i < coords.length; i++) {
+      coords[i] = readCoordinate(list.get(i));
+    }
+    return coords;
+  }
+
+  private static Coordinate readCoordinate(Object coordinate) {
+    if(coordinate instanceof Coordinate) {
+      //already read from a parser
+      return (Coordinate) coordinate;
+    }
+    List<Object> position = (List<Object>) coordinate;
+    double x = ((Number) position.get(0)).doubleValue();
+    double y = ((Number) position.get(1)).doubleValue();
+    if(position.size() > 2) {
+      return new Coordinate(x, y, ((Number) position.get(2)).doubleValue());
+    }
+    return new Coordinate(x, y);
+  }
+}
@@ -4,128 +4,228 @@ import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.index.UniqueFactory;
 import org.neo4j.graphdb.traversal.Evaluation;
 import org.neo4j.graphdb.traversal.Evaluator;
 import org.neo4j.graphdb.traversal.Evaluators;
 import org.neo4j.graphdb.traversal.TraversalDescription;
-import org.neo4j.server.rest.repr.ListRepresentation;
-import org.neo4j.server.rest.repr.Representation;
-import org.neo4j.server.rest.repr.RepresentationType;
-import org.neo4j.server.rest.repr.ValueRepresentation;
 
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public class HeatmapQuery {
 
+  //cells across a map tile we aim for when picking a depth from a zoom level
+  private final static int CELLS_PER_TILE = 32;
+
   private GraphDatabaseService graphDb;
 
-  public HeatmapQuery(GraphDatabaseService graphDb) {
+  private BoxCache boxCache;
+
+  private QueryExecutor queryExecutor;
+
+  //replica view this query serves from, null to go to the graph
+  private BoxReplica.View view;
+
+  /**
+   * replica, if not null, serves queries once it has a snapshot. The view
+   * is taken here, so the version and the cells of one query come from
+   * the same one.
+   */
+  public HeatmapQuery(GraphDatabaseService graphDb, BoxCache boxCache, QueryExecutor queryExecutor, BoxReplica replica) {
     this.graphDb = graphDb;
+    this.boxCache = boxCache;
+    this.queryExecutor = queryExecutor;
+    this.view = replica == null ? null : replica.getView();
   }
 
-  public Representation queryPolygon(String geoString, Integer depth) {
-    /*
-    ArrayList<Representation> t1 = new ArrayList<>();
-    t1.add(ValueRepresentation.number(0));
-    t1.add(ValueRepresentation.number(1));
-    t1.add(ValueRepresentation.number(2));
-    Representation t1Rep = new ListRepresentation(RepresentationType.DOUBLE,t1);
+  /**
+   * The BOX depth that gives a map tile at this zoom level about
+   * CELLS_PER_TILE cells across, from 1 (10 degree boxes) to the deepest level.
+   */
+  public static int getDepth(int zoom) {
+    double cellWidth = 360 / Math.pow(2, Math.max(zoom, 0)) / CELLS_PER_TILE;
+    int level = 0;
+    while(level < Cell.MAX_LEVEL && Cell.size(level + 1) / (double) Cell.STEPS >= cellWidth) {
+      level++;
+    }
+    return level + 1;
+  }
 
-    ArrayList<Representation> t2 = new ArrayList<>();
-    t2.add(ValueRepresentation.number(3));
-    t2.add(ValueRepresentation.number(4));
-    t2.add(ValueRepresentation.number(5));
-    Representation t2Rep = new ListRepresentation(RepresentationType.DOUBLE,t2);
+  /**
+   * Current rollup version, changes whenever any count does. Read it
+   * before the cells, so a write in between only makes it stale.
+   */
+  public long getVersion() {
+    if(view != null) {
+      return view.getVersion();
+    }
 
-    ArrayList<Representation> ret = new ArrayList<>();
-    ret.add(t1Rep);
-    ret.add(t2Rep);
+    long version;
+    try(Transaction tx = graphDb.beginTx()) {
+      version = Rollups.getVersion(boxCache.getRoot(graphDb));
+      tx.success();
+    }
+    return version;
+  }
 
-    Representation retRep = new ListRepresentation(RepresentationType.MAP,ret);
+  /**
+   * Envelope of a geojson geometry, or null if it isn't valid.
+   */
+  public static Envelope getEnvelope(String geoString) {
+    Geometry geometry = geoJSONtoGeometry(geoString);
+    return geometry == null ? null : geometry.getEnvelopeInternal();
+  }
 
-    return retRep;
-    */
+  /**
+   * Cells at depth in the envelope of a geojson geometry, or null if it isn't valid.
+   */
+  public List<double[]> queryPolygon(String geoString, Integer depth) {
+    return queryPolygon(geoString, depth, 1);
+  }
 
-    Representation ret = null;
+  public List<double[]> queryPolygon(String geoString, Integer depth, int parallelism) {
+    List<double[]> ret = null;
 
     //get geometry
     Geometry geometry = geoJSONtoGeometry(geoString);
 
     //if we have a valid geometry, query it
     if(geometry != null) {
-      ret = queryGeometry(geometry, depth);
+      ret = queryEnvelope(geometry.getEnvelopeInternal(), depth, parallelism);
     }
 
     return ret;
   }
 
-  private Representation queryGeometry(Geometry geometry, Integer depth) {
-    ArrayList<Representation> ret = new ArrayList<>();
-
-    //create bounding envelope
-    Envelope envelope = geometry.getEnvelopeInternal();
+  /**
+   * Cells at depth in the envelope, as {lon, lat, count, lastUpdated} rows.
+   */
+  public List<double[]> queryEnvelope(Envelope envelope, Integer depth, int parallelism) {
+    List<double[]> ret = new ArrayList<>();
 
-    //get min and max latitude
-    double minLon = envelope.getMinX();
-    double maxLon = envelope.getMaxX();
-    double minLat = envelope.getMinY();
-    double maxLat = envelope.getMaxY();
+    //the replica is fast enough without splitting the tree
+    if(view != null) {
+      return view.queryHeatmap(envelope, depth);
+    }
 
     //perform query
     try(Transaction tx = graphDb.beginTx()) {
 
-      UniqueFactory<Node> factory = new UniqueFactory.UniqueNodeFactory( graphDb, Settings.NEO_ROOT)
-      {
-        @Override
-        protected void initialize( Node created, Map<String, Object> properties )
-        {
-          created.setProperty( "id", properties.get( "id" ) );
+      Node start = boxCache.getRoot(graphDb);
+
+      if(parallelism <= 1) {
+        for(Path path : getTraversal(envelope, depth, 0).traverse(start)) {
+          ret.add(getCell(path));
+        }
+      } else {
+        //walk the top of the tree here a level at a time, each level from the boxes
+        //of the one above, until there are enough subtrees to give every task a few
+        int split = 0;
+        Node[] frontier = {start};
+        List<Path> subtrees;
+        do {
+          subtrees = new ArrayList<>();
+          for(Path path : getTraversal(envelope, split + 1, split).traverse(frontier)) {
+            subtrees.add(path);
+          }
+          split++;
+          frontier = new Node[subtrees.size()];
+          for(int i = 0; i < frontier.length; i++) {
+            frontier[i] = subtrees.get(i).endNode();
+          }
+        } while(!subtrees.isEmpty() && subtrees.size() < parallelism * QueryExecutor.SUBTREES_PER_TASK && split < depth);
+
+        if(split == depth) {
+          for(Path path : subtrees) {
+            ret.add(getCell(path));
+          }
+        } else {
+          //then hand the subtrees below out to the executor, each task in its own transaction
+          List<Long> ids = new ArrayList<>();
+          for(Path path : subtrees) {
+            ids.add(path.endNode().getId());
+          }
+          List<Callable<List<double[]>>> tasks = new ArrayList<>();
+          for(List<Long> part : QueryExecutor.partition(ids, parallelism)) {
+            tasks.add(getSubtreeTask(part, split, envelope, depth));
+          }
+          for(List<double[]> partial : queryExecutor.invokeAll(tasks)) {
+            ret.addAll(partial);
+          }
         }
-      };
-      Node start = factory.getOrCreate("id", 0);
-      //Node start = graphDb.getNodeById(0);
-      TraversalDescription traversal = graphDb.traversalDescription()
-          .breadthFirst()
-          .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK), Direction.INCOMING)
-              //only traverse paths in our bounding box
-          .evaluator(getEvaluator(minLon, maxLon, minLat, maxLat, depth));
-
-
-
-      for(Path path : traversal.traverse(start)) {
-
-        double hitMinLon = (double) path.lastRelationship().getProperty("minLon");
-        double hitMaxLon = (double) path.lastRelationship().getProperty("maxLon");
-        double hitMinLat = (double) path.lastRelationship().getProperty("minLat");
-        double hitMaxLat = (double) path.lastRelationship().getProperty("maxLat");
-        double lon = (hitMinLon+hitMaxLon)/2;
-        double lat = (hitMinLat+hitMaxLat)/2;
-        int count = (int) path.endNode().getProperty("count");
-        long lastUpdated = (long) path.endNode().getProperty("lastUpdated");
-
-        ArrayList<Representation> tmp = new ArrayList<>();
-        tmp.add(ValueRepresentation.number(lon));
-        tmp.add(ValueRepresentation.number(lat));
-        tmp.add(ValueRepresentation.number(count));
-        tmp.add(ValueRepresentation.number(lastUpdated));
-        ret.add(new ListRepresentation(RepresentationType.DOUBLE,tmp));
       }
 
       tx.success();
     }
 
-    return new ListRepresentation(RepresentationType.MAP,ret);
+    return ret;
+  }
+
+  private Callable<List<double[]>> getSubtreeTask(final List<Long> subtrees, final int startDepth, final Envelope envelope, final Integer depth) {
+    return new Callable<List<double[]>>() {
+      @Override
+      public List<double[]> call() {
+        List<double[]> cells = new ArrayList<>();
+        try(Transaction tx = graphDb.beginTx()) {
+          for(Long id : subtrees) {
+            for(Path path : getTraversal(envelope, depth, startDepth).traverse(graphDb.getNodeById(id))) {
+              cells.add(getCell(path));
+            }
+          }
+          tx.success();
+        }
+        return cells;
+      }
+    };
   }
 
-  private Evaluator getEvaluator(final double minLon, final double maxLon, final double minLat, final double maxLat, final int depth) {
+  /**
+   * Boxes at depth in the query, from a box startDepth below ROOT.
+   */
+  private TraversalDescription getTraversal(Envelope envelope, Integer depth, int startDepth) {
+    return graphDb.traversalDescription()
+        .breadthFirst()
+        .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK), Direction.INCOMING)
+            //only traverse paths in our bounding box
+        .evaluator(getEvaluator(envelope.getMinX(), envelope.getMaxX(), envelope.getMinY(), envelope.getMaxY(), depth, startDepth));
+  }
+
+  private double[] getCell(Path path) {
+    double hitMinLon = (double) path.lastRelationship().getProperty("minLon");
+    double hitMaxLon = (double) path.lastRelationship().getProperty("maxLon");
+    double hitMinLat = (double) path.lastRelationship().getProperty("minLat");
+    double hitMaxLat = (double) path.lastRelationship().getProperty("maxLat");
+    int count = (int) path.endNode().getProperty("count", 0);
+    long lastUpdated = (long) path.endNode().getProperty("lastUpdated", 0L);
+
+    return getRow(hitMinLon, hitMaxLon, hitMinLat, hitMaxLat, count, lastUpdated);
+  }
+
+  /**
+   * The {lon, lat, count, lastUpdated} row of a cell.
+   */
+  public static double[] getRow(long cell, int count, long lastUpdated) {
+    return getRow(Cell.minLon(cell), Cell.maxLon(cell), Cell.minLat(cell), Cell.maxLat(cell), count, lastUpdated);
+  }
+
+  private static double[] getRow(double minLon, double maxLon, double minLat, double maxLat, int count, long lastUpdated) {
+    //centers fall on half steps, round off the noise so they print short
+    double lon = Math.round((minLon+maxLon) * Cell.STEPS) / (2.0 * Cell.STEPS);
+    double lat = Math.round((minLat+maxLat) * Cell.STEPS) / (2.0 * Cell.STEPS);
+
+    return new double[] {lon, lat, count, lastUpdated};
+  }
+
+  private Evaluator getEvaluator(final double minLon, final double maxLon, final double minLat, final double maxLat, final int depth, final int startDepth) {
     return new Evaluator() {
       @Override
       public Evaluation evaluate( final Path path )
       {
+        int length = path.length() + startDepth;
+
         if ( path.length() == 0 )
         {
           return Evaluation.EXCLUDE_AND_CONTINUE;
@@ -148,9 +248,9 @@ public class HeatmapQuery {
 
         if(insideBoundary) {
           //check depth
-          if(path.length() < depth) {
+          if(length < depth) {
             return Evaluation.EXCLUDE_AND_CONTINUE;
-          } else if(path.length() == depth) {
+          } else if(length == depth) {
             return Evaluation.INCLUDE_AND_PRUNE;
           } else {
             return Evaluation.EXCLUDE_AND_PRUNE;
@@ -163,7 +263,7 @@ public class HeatmapQuery {
     };
   }
 
-  private Geometry geoJSONtoGeometry(String geoString) {
+  private static Geometry geoJSONtoGeometry(String geoString) {
     Geometry geometry;
     GeometryJSON gJSON = new GeometryJSON(15); //15 precision
     Reader reader = new StringReader(geoString);
@@ -0,0 +1,118 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU of EntryHits by node id, shared across queries.
+ *
+ * Registers itself for transaction events, so every committed change to
+ * a node, from any writer, evicts it. A hit loaded while a transaction
+ * was committing is not cached, as it may hold the old values.
+ */
+public class HitCache implements TransactionEventHandler<Void> {
+
+  private final long budgetBytes;
+
+  private long usedBytes = 0;
+
+  private final LinkedHashMap<Long, EntryHit> hits = new LinkedHashMap<>(1024, 0.75f, true);
+
+  //bumped by every commit
+  private long epoch = 0;
+
+  public HitCache(GraphDatabaseService graphDb, long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    graphDb.registerTransactionEventHandler(this);
+  }
+
+  /**
+   * Get the hit for an Entry node, loading it if needed.
+   * Must be called inside a transaction.
+   */
+  public EntryHit get(Node entry) {
+    long loadEpoch;
+    synchronized (this) {
+      EntryHit hit = hits.get(entry.getId());
+      if(hit != null) {
+        return hit;
+      }
+      loadEpoch = epoch;
+    }
+
+    EntryHit hit = EntryHit.load(entry);
+
+    synchronized (this) {
+      if(loadEpoch == epoch) {
+        put(hit);
+      }
+    }
+    return hit;
+  }
+
+  public synchronized void clear() {
+    hits.clear();
+    usedBytes = 0;
+  }
+
+  public synchronized Map<String, Object> getStats() {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("entries", hits.size());
+    stats.put("bytes", usedBytes);
+    stats.put("budget", budgetBytes);
+    return stats;
+  }
+
+  @Override
+  public Void beforeCommit(TransactionData data) throws Exception {
+    return null;
+  }
+
+  @Override
+  public synchronized void afterCommit(TransactionData data, Void state) {
+    epoch++;
+    for(PropertyEntry<Node> property : data.assignedNodeProperties()) {
+      remove(property.entity().getId());
+    }
+    for(PropertyEntry<Node> property : data.removedNodeProperties()) {
+      remove(property.entity().getId());
+    }
+    //ids of deleted nodes get reused
+    for(Node node : data.deletedNodes()) {
+      remove(node.getId());
+    }
+  }
+
+  @Override
+  public void afterRollback(TransactionData data, Void state) {
+  }
+
+  private void put(EntryHit hit) {
+    EntryHit old = hits.put(hit.getNodeId(), hit);
+    if(old != null) {
+      usedBytes -= old.bytes();
+    }
+    usedBytes += hit.bytes();
+
+    //evict least recently used hits until we are back under budget
+    Iterator<Map.Entry<Long, EntryHit>> eldest = hits.entrySet().iterator();
+    while(usedBytes > budgetBytes && eldest.hasNext()) {
+      usedBytes -= eldest.next().getValue().bytes();
+      eldest.remove();
+    }
+  }
+
+  private void remove(long nodeId) {
+    EntryHit old = hits.remove(nodeId);
+    if(old != null) {
+      usedBytes -= old.bytes();
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package com.findarecord.neo4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Picks the best collections from a stream of hits without keeping them all.
+ *
+ * A collection ranks by its best hit. Only the size best collections are
+ * kept, so memory is O(size) however many hits are added. A collection
+ * pushed out can't come back with a worse hit, as that hit would rank
+ * below everything still kept.
+ */
+public class HitSelector {
+
+  private final Comparator<EntryHit> comparator;
+
+  private final int size;
+
+  private final TreeSet<EntryHit> best;
+
+  private final HashMap<String, EntryHit> byCollection = new HashMap<>();
+
+  public HitSelector(Comparator<EntryHit> comparator, int size) {
+    this.comparator = comparator;
+    this.size = size;
+    this.best = new TreeSet<>(comparator);
+  }
+
+  public void add(EntryHit hit) {
+    if(size <= 0) {
+      return;
+    }
+
+    //once full, anything not better than the last kept hit is out
+    if(best.size() == size && comparator.compare(hit, best.last()) >= 0) {
+      return;
+    }
+
+    EntryHit current = byCollection.get(hit.getCollectionId());
+    if(current != null) {
+      if(comparator.compare(hit, current) >= 0) {
+        return;
+      }
+      best.remove(current);
+    }
+    best.add(hit);
+    byCollection.put(hit.getCollectionId(), hit);
+
+    if(best.size() > size) {
+      byCollection.remove(best.pollLast().getCollectionId());
+    }
+  }
+
+  /**
+   * Whether a hit of this collection is among the ones kept.
+   */
+  public boolean contains(String collectionId) {
+    return byCollection.containsKey(collectionId);
+  }
+
+  public void addAll(HitSelector other) {
+    for(EntryHit hit : other.best) {
+      add(hit);
+    }
+  }
+
+  /**
+   * Collection ids in rank order, skipping the first offset.
+   */
+  public List<String> getCollectionIds(int offset) {
+    List<String> collectionIds = new ArrayList<>();
+    int i = 0;
+    for(EntryHit hit : best) {
+      if(i++ >= offset) {
+        collectionIds.add(hit.getCollectionId());
+      }
+    }
+    return collectionIds;
+  }
+}
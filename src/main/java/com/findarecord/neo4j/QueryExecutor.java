@@ -0,0 +1,75 @@
+package com.findarecord.neo4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Shared pool for running parts of a query in parallel.
+ *
+ * Queries split the BOX tree into subtrees and hand them out here. The
+ * pool size caps the threads used by all queries together, a request can
+ * ask for less but never more.
+ */
+public class QueryExecutor {
+
+  //enough subtrees per task to even out their sizes
+  public final static int SUBTREES_PER_TASK = 4;
+
+  private final int maxParallelism;
+
+  private final ForkJoinPool pool;
+
+  public QueryExecutor(int maxParallelism) {
+    this.maxParallelism = maxParallelism;
+    this.pool = new ForkJoinPool(maxParallelism);
+  }
+
+  /**
+   * Parallelism to use for a request, 1 if none was asked for.
+   */
+  public int getParallelism(Integer requested) {
+    if(requested == null || requested < 1) {
+      return 1;
+    }
+    return Math.min(requested, maxParallelism);
+  }
+
+  /**
+   * Run tasks on the pool and return their results in order.
+   */
+  public <T> List<T> invokeAll(List<Callable<T>> tasks) {
+    List<T> results = new ArrayList<>(tasks.size());
+    try {
+      for(Future<T> future : pool.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted running query", e);
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("Unable to run query", e.getCause());
+    }
+    return results;
+  }
+
+  /**
+   * Deal ids out round robin into at most parts lists.
+   */
+  public static List<List<Long>> partition(List<Long> ids, int parts) {
+    List<List<Long>> partitions = new ArrayList<>();
+    for(int i = 0; i < Math.min(parts, ids.size()); i++) {
+      partitions.add(new ArrayList<Long>());
+    }
+    for(int i = 0; i < ids.size(); i++) {
+      partitions.get(i % partitions.size()).add(ids.get(i));
+    }
+    return partitions;
+  }
+}
@@ -0,0 +1,320 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Geometry;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.DeserializationContext;
+import org.codehaus.jackson.map.JsonDeserializer;
+import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.map.annotate.JsonDeserialize;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Params of a QueryServer request, read straight off the request stream.
+ *
+ * Values are type checked while parsing, so nothing but the params
+ * themselves is kept: geojson given as an object is built into a geometry
+ * token by token, without a tree or a copy of the body in between.
+ */
+@JsonDeserialize(using = QueryRequest.Deserializer.class)
+public class QueryRequest {
+
+  //type of every param, named in errors
+  private final static Map<String, String> TYPES = new HashMap<>();
+
+  static {
+    TYPES.put("lon", "double");
+    TYPES.put("lat", "double");
+    TYPES.put("radius", "double");
+    TYPES.put("from", "int");
+    TYPES.put("to", "int");
+    TYPES.put("tags", "arraylist");
+    TYPES.put("depth", "int");
+    TYPES.put("count", "int");
+    TYPES.put("offset", "int");
+    TYPES.put("precise", "boolean");
+    TYPES.put("collapse", "boolean");
+    TYPES.put("parallelism", "int");
+    TYPES.put("metric", "string");
+    TYPES.put("geojson", "string");
+    TYPES.put("zoom", "int");
+    TYPES.put("bbox", "arraylist");
+    TYPES.put("query", "string");
+    TYPES.put("params", "map");
+  }
+
+  //params that were given and not null
+  private Set<String> present = new HashSet<>();
+
+  private Double lon;
+  private Double lat;
+  private Double radius;
+  private Integer from;
+  private Integer to;
+  private ArrayList<String> tags;
+  private Integer depth;
+  private Integer count;
+  private Integer offset;
+  private boolean precise;
+  private boolean collapse;
+  private Integer parallelism;
+  private String metric;
+  private String geojson;
+  private Geometry geometry;
+  private Integer zoom;
+  private ArrayList<Double> bbox;
+  private String query;
+  private Map<String, Object> params;
+
+  /**
+   * Fail with "x must be of type y" for the first of these params that is missing.
+   */
+  public void require(String... names) throws Exception {
+    for(String name : names) {
+      if(!present.contains(name)) {
+        throw new Exception(name + " must be of type " + TYPES.get(name));
+      }
+    }
+  }
+
+  public boolean has(String name) {
+    return present.contains(name);
+  }
+
+  public Double getLon() {
+    return lon;
+  }
+
+  public Double getLat() {
+    return lat;
+  }
+
+  public Double getRadius() {
+    return radius;
+  }
+
+  public Integer getFrom() {
+    return from;
+  }
+
+  public Integer getTo() {
+    return to;
+  }
+
+  public ArrayList<String> getTags() {
+    return tags;
+  }
+
+  public Integer getDepth() {
+    return depth;
+  }
+
+  public Integer getCount() {
+    return count;
+  }
+
+  public Integer getOffset() {
+    return offset;
+  }
+
+  public boolean isPrecise() {
+    return precise;
+  }
+
+  public boolean isCollapse() {
+    return collapse;
+  }
+
+  public Integer getParallelism() {
+    return parallelism;
+  }
+
+  public String getMetric() {
+    return metric;
+  }
+
+  /**
+   * geojson given as a string, null if it was given as an object.
+   */
+  public String getGeojson() {
+    return geojson;
+  }
+
+  /**
+   * geojson given as an object, null if it was given as a string or
+   * isn't a geometry we understand.
+   */
+  public Geometry getGeometry() {
+    return geometry;
+  }
+
+  public Integer getZoom() {
+    return zoom;
+  }
+
+  public ArrayList<Double> getBbox() {
+    return bbox;
+  }
+
+  public String getQuery() {
+    return query;
+  }
+
+  /**
+   * Cypher params, empty if none were given.
+   */
+  public Map<String, Object> getParams() {
+    return params == null ? new HashMap<String, Object>() : params;
+  }
+
+  public static class Deserializer extends JsonDeserializer<QueryRequest> {
+
+    @Override
+    public QueryRequest deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+      if(parser.getCurrentToken() != JsonToken.START_OBJECT) {
+        throw new JsonMappingException("request must be an object");
+      }
+
+      QueryRequest request = new QueryRequest();
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+
+        //null is the same as leaving it out, unknown params are skipped
+        if(token == JsonToken.VALUE_NULL || !TYPES.containsKey(name)) {
+          parser.skipChildren();
+          continue;
+        }
+
+        switch (name) {
+          case "lon": request.lon = readDouble(parser, name); break;
+          case "lat": request.lat = readDouble(parser, name); break;
+          case "radius": request.radius = readDouble(parser, name); break;
+          case "from": request.from = readInt(parser, name); break;
+          case "to": request.to = readInt(parser, name); break;
+          case "tags": request.tags = readStrings(parser, name); break;
+          case "depth": request.depth = readInt(parser, name); break;
+          case "count": request.count = readInt(parser, name); break;
+          case "offset": request.offset = readInt(parser, name); break;
+          case "precise": request.precise = readBoolean(parser, name); break;
+          case "collapse": request.collapse = readBoolean(parser, name); break;
+          case "parallelism": request.parallelism = readInt(parser, name); break;
+          case "metric": request.metric = readString(parser, name); break;
+          case "geojson":
+            if(token == JsonToken.START_OBJECT) {
+              request.geometry = GeoJSONReader.read(parser);
+            } else {
+              request.geojson = readString(parser, name);
+            }
+            break;
+          case "zoom": request.zoom = readInt(parser, name); break;
+          case "bbox": request.bbox = readDoubles(parser, name); break;
+          case "query": request.query = readString(parser, name); break;
+          case "params":
+            if(token != JsonToken.START_OBJECT) {
+              throw typeError(name);
+            }
+            request.params = (Map<String, Object>) readValue(parser);
+            break;
+        }
+        request.present.add(name);
+      }
+      return request;
+    }
+
+    private static double readDouble(JsonParser parser, String name) throws IOException {
+      JsonToken token = parser.getCurrentToken();
+      if(token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+        throw typeError(name);
+      }
+      return parser.getDoubleValue();
+    }
+
+    private static int readInt(JsonParser parser, String name) throws IOException {
+      if(parser.getCurrentToken() != JsonToken.VALUE_NUMBER_INT || parser.getNumberType() != JsonParser.NumberType.INT) {
+        throw typeError(name);
+      }
+      return parser.getIntValue();
+    }
+
+    private static boolean readBoolean(JsonParser parser, String name) throws IOException {
+      JsonToken token = parser.getCurrentToken();
+      if(token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE) {
+        throw typeError(name);
+      }
+      return token == JsonToken.VALUE_TRUE;
+    }
+
+    private static String readString(JsonParser parser, String name) throws IOException {
+      if(parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+        throw typeError(name);
+      }
+      return parser.getText();
+    }
+
+    private static ArrayList<String> readStrings(JsonParser parser, String name) throws IOException {
+      if(parser.getCurrentToken() != JsonToken.START_ARRAY) {
+        throw typeError(name);
+      }
+      ArrayList<String> values = new ArrayList<>();
+      while(parser.nextToken() != JsonToken.END_ARRAY) {
+        values.add(readString(parser, name));
+      }
+      return values;
+    }
+
+    private static ArrayList<Double> readDoubles(JsonParser parser, String name) throws IOException {
+      if(parser.getCurrentToken() != JsonToken.START_ARRAY) {
+        throw typeError(name);
+      }
+      ArrayList<Double> values = new ArrayList<>();
+      while(parser.nextToken() != JsonToken.END_ARRAY) {
+        values.add(readDouble(parser, name));
+      }
+      return values;
+    }
+
+    //any json value as plain java maps, lists, strings, numbers and booleans
+    private static Object readValue(JsonParser parser) throws IOException {
+      switch (parser.getCurrentToken()) {
+        case START_OBJECT:
+          Map<String, Object> map = new LinkedHashMap<>();
+          while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            map.put(name, readValue(parser));
+          }
+          return map;
+        case START_ARRAY:
+          List<Object> list = new ArrayList<>();
+          while(parser.nextToken() != JsonToken.END_ARRAY) {
+            list.add(readValue(parser));
+          }
+          return list;
+        case VALUE_STRING:
+          return parser.getText();
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+          return parser.getNumberValue();
+        case VALUE_TRUE:
+          return true;
+        case VALUE_FALSE:
+          return false;
+        default:
+          return null;
+      }
+    }
+
+    private static JsonMappingException typeError(String name) {
+      return new JsonMappingException(name + " must be of type " + TYPES.get(name));
+    }
+  }
+}
@@ -1,46 +1,75 @@
 package com.findarecord.neo4j;
 
 
-import org.apache.commons.io.IOUtils;
+import com.vividsolutions.jts.geom.Envelope;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
-import org.neo4j.cypher.ExecutionEngine;
+import org.neo4j.cypher.CypherException;
 import org.neo4j.cypher.ExecutionResult;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.kernel.impl.util.StringLogger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class QueryServer extends HttpServlet {
 
   private static final Logger logger = LoggerFactory.getLogger(QueryServer.class);
+
+  private final static String CONTENT_TYPE = "application/json;charset=utf-8";
+
   protected ObjectMapper mapper = new ObjectMapper();
 
+  //thread safe, shared by every request
+  protected ObjectReader requestReader = mapper.reader(QueryRequest.class);
+
   private GraphDatabaseService graphDb;
 
-  public QueryServer(GraphDatabaseService graphDb) {
+  private BoxCache boxCache;
+
+  private HitCache hitCache;
+
+  private QueryExecutor queryExecutor;
+
+  private TagDictionary tagDictionary;
+
+  private BoxReplica replica;
+
+  private CypherEngine cypherEngine;
+
+  public QueryServer(GraphDatabaseService graphDb, BoxCache boxCache, HitCache hitCache, QueryExecutor queryExecutor, TagDictionary tagDictionary, BoxReplica replica) {
     this.graphDb = graphDb;
+    this.boxCache = boxCache;
+    this.hitCache = hitCache;
+    this.queryExecutor = queryExecutor;
+    this.tagDictionary = tagDictionary;
+    this.replica = replica;
+    this.cypherEngine = new CypherEngine(graphDb);
   }
 
   @Override
   protected void service(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
 
-    resp.setContentType("application/json;charset=utf-8");
+    resp.setContentType(CONTENT_TYPE);
 
     String uri = req.getRequestURI();
     String[] splitUri = getUriPieces(uri);
@@ -50,16 +79,31 @@ public class QueryServer extends HttpServlet {
       return;
     }
 
+    if (splitUri[0].equals("stats")) {
+      handleStats(req, resp);
+      return;
+    }
+
     if (splitUri[0].equals("distance")) {
       handleDistanceQuery(req, resp);
       return;
     }
 
+    if (splitUri[0].equals("nearest")) {
+      handleNearestQuery(req, resp);
+      return;
+    }
+
     if (splitUri[0].equals("shape")) {
       handleShapeQuery(req, resp);
       return;
     }
 
+    if (splitUri[0].equals("heatmap")) {
+      handleHeatmapQuery(req, resp);
+      return;
+    }
+
     resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
   }
 
@@ -70,175 +114,460 @@ public class QueryServer extends HttpServlet {
       throw new UnsupportedOperationException("POST required");
     }
 
-    Map<String, Object> parsedValue = getJSON(req);
+    QueryRequest request;
 
-    //logger.warn("obj is {}", parsedValue.get("query"));
+    try {
+      request = readRequest(req);
+      request.require("query");
+    } catch (Exception e) {
+      writeError(resp, e);
+      return;
+    }
 
-    Map<String, Object> responseMap = new HashMap();
-    responseMap.put("ok", false);
+    try ( Transaction tx = graphDb.beginTx() ) {
 
-    Map<String, Object> resultMap = new HashMap();
+      ResourceIterator<Map<String, Object>> rows = null;
+      try {
+        ExecutionResult result = cypherEngine.execute(request.getQuery(), request.getParams());
+
+        //cypher runs lazily, so pull the first row before committing to a 200
+        List<String> columns = result.javaColumns();
+        rows = result.javaIterator();
+        rows.hasNext();
+
+        //{"ok":true,"columns":[...],"rows":[[...],...]}, one row at a time as cypher produces them
+        resp.setStatus(HttpServletResponse.SC_OK);
+        JsonGenerator generator = getGenerator(resp);
+        generator.writeStartObject();
+        generator.writeBooleanField("ok", true);
+        generator.writeArrayFieldStart("columns");
+        for(String column : columns) {
+          generator.writeString(column);
+        }
+        generator.writeEndArray();
+
+        generator.writeArrayFieldStart("rows");
+        while(rows.hasNext()) {
+          Map<String, Object> row = rows.next();
+          generator.writeStartArray();
+          for(String column : columns) {
+            writeCypherValue(generator, row.get(column));
+          }
+          generator.writeEndArray();
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+      } catch (CypherException e) {
+        //later rows can fail too, report those the same way if nothing went out yet
+        if(resp.isCommitted()) {
+          throw e;
+        }
+        resp.reset();
+        resp.setContentType(CONTENT_TYPE);
+        resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        JsonGenerator generator = getGenerator(resp);
+        generator.writeStartObject();
+        generator.writeBooleanField("ok", false);
+        generator.writeStringField("error", e.getMessage());
+        generator.writeEndObject();
+        generator.close();
+        return;
+      } catch (IOException | RuntimeException e) {
+        if(!writeFailure(resp, e)) {
+          throw e;
+        }
+        return;
+      } finally {
+        if(rows != null) {
+          rows.close();
+        }
+      }
 
-    ExecutionEngine engine = new ExecutionEngine(graphDb, StringLogger.SYSTEM);
+      tx.success();
+    }
+  }
 
-    try ( Transaction tx = graphDb.beginTx() ) {
+  protected void handleStats(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException{
 
-      ExecutionResult result = engine.execute((String) parsedValue.get("query"));
-      responseMap.put("ok", true);
-      responseMap.put("result", result.dumpToString());
-      tx.success();
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("cypherPlanEstimate", cypherEngine.getStats());
+    stats.put("boxCache", boxCache.getStats());
+    stats.put("hitCache", hitCache.getStats());
+    if(replica != null) {
+      stats.put("replica", replica.getStats());
     }
 
-    OutputStream os = resp.getOutputStream();
     resp.setStatus(HttpServletResponse.SC_OK);
-    mapper.writeValue(os, responseMap);
+    mapper.writeValue(resp.getOutputStream(), stats);
   }
 
   protected void handleDistanceQuery(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException{
 
-    Map<String, Object> json = getJSON(req);
+    QueryRequest request;
+
+    try {
+      request = readRequest(req);
+      request.require("lon", "lat", "radius", "from", "to", "tags", "depth", "count", "offset");
+    } catch (Exception e) {
+      writeError(resp, e);
+      return;
+    }
+
+    EntryQuery idx = new EntryQuery(graphDb, boxCache, hitCache, queryExecutor, tagDictionary, replica);
+
+    ArrayList<String> results = idx.queryDistance(
+        request.getLon(),
+        request.getLat(),
+        request.getRadius(),
+        request.getFrom(),
+        request.getTo(),
+        request.getTags(),
+        request.getDepth(),
+        request.getCount(),
+        request.getOffset(),
+        request.isPrecise(),
+        queryExecutor.getParallelism(request.getParallelism()),
+        request.isCollapse());
+
+    resp.setStatus(HttpServletResponse.SC_OK);
+    writeIds(resp, results);
+  }
 
-    HashMap<String,String> mapping = new HashMap<>();
-    mapping.put("lon","double");
-    mapping.put("lat","double");
-    mapping.put("radius","double");
-    mapping.put("from","int");
-    mapping.put("to","int");
-    mapping.put("tags","arraylist");
-    mapping.put("depth","int");
-    mapping.put("count","int");
-    mapping.put("offset","int");
+  protected void handleNearestQuery(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException{
 
-    HashMap<String,Object> params;
+    QueryRequest request;
+    DistanceMetric metric = DistanceMetric.PLANAR;
 
     try {
-      params = extractParams(mapping, json);
+      request = readRequest(req);
+      request.require("lon", "lat", "from", "to", "tags", "count", "offset");
+
+      if("geodesic".equals(request.getMetric())) {
+        metric = DistanceMetric.GEODESIC;
+      } else if(request.getMetric() != null && !"planar".equals(request.getMetric())) {
+        throw new Exception("metric must be planar or geodesic");
+      }
     } catch (Exception e) {
-      resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-      PrintWriter writer = resp.getWriter();
-      writer.print("{\"error\":\""+e.getMessage()+"\"}");
+      writeError(resp, e);
       return;
     }
 
-    EntryQuery idx = new EntryQuery(graphDb);
+    EntryQuery idx = new EntryQuery(graphDb, boxCache, hitCache, queryExecutor, tagDictionary, replica);
 
-    ArrayList<String> results = idx.queryDistance(
-        (Double) params.get("lon"),
-        (Double) params.get("lat"),
-        (Double) params.get("radius"),
-        (Integer) params.get("from"),
-        (Integer) params.get("to"),
-        (ArrayList<String>) params.get("tags"),
-        (Integer) params.get("depth"),
-        (Integer) params.get("count"),
-        (Integer) params.get("offset"));
-
-    OutputStream os = resp.getOutputStream();
+    //ids come out nearest first, so write them as they are found
     resp.setStatus(HttpServletResponse.SC_OK);
-    mapper.writeValue(os, results);
+    final JsonGenerator generator = getGenerator(resp);
+    generator.writeStartArray();
+
+    try {
+      idx.queryNearest(
+          request.getLon(),
+          request.getLat(),
+          request.getRadius(),
+          metric,
+          request.getFrom(),
+          request.getTo(),
+          request.getTags(),
+          request.getCount(),
+          request.getOffset(),
+          new EntryQuery.IdWriter() {
+            @Override
+            public void write(String collectionId) throws IOException {
+              generator.writeString(collectionId);
+            }
+          });
+    } catch (IOException | RuntimeException e) {
+      if(!writeFailure(resp, e)) {
+        throw e;
+      }
+      return;
+    }
+
+    generator.writeEndArray();
+    generator.close();
   }
 
   protected void handleShapeQuery(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException{
 
-    Map<String, Object> json = getJSON(req);
+    QueryRequest request;
 
-    HashMap<String,String> mapping = new HashMap<>();
-    mapping.put("geojson","string");
-    mapping.put("from","int");
-    mapping.put("to","int");
-    mapping.put("tags","arraylist");
-    mapping.put("depth","int");
-    mapping.put("count","int");
-    mapping.put("offset","int");
+    try {
+      request = readRequest(req);
+      request.require("geojson", "from", "to", "tags", "depth", "count", "offset");
+    } catch (Exception e) {
+      writeError(resp, e);
+      return;
+    }
 
-    HashMap<String,Object> params;
+    EntryQuery idx = new EntryQuery(graphDb, boxCache, hitCache, queryExecutor, tagDictionary, replica);
+    ArrayList<String> results;
+
+    //geojson sent as an object was already built while reading the request
+    if(request.getGeojson() == null) {
+      results = idx.queryPolygon(
+          request.getGeometry(),
+          request.getFrom(),
+          request.getTo(),
+          request.getTags(),
+          request.getDepth(),
+          request.getCount(),
+          request.getOffset(),
+          request.isPrecise(),
+          queryExecutor.getParallelism(request.getParallelism()),
+          request.isCollapse());
+    } else {
+      results = idx.queryPolygon(
+          request.getGeojson(),
+          request.getFrom(),
+          request.getTo(),
+          request.getTags(),
+          request.getDepth(),
+          request.getCount(),
+          request.getOffset(),
+          request.isPrecise(),
+          queryExecutor.getParallelism(request.getParallelism()),
+          request.isCollapse());
+    }
+
+    resp.setStatus(HttpServletResponse.SC_OK);
+    writeIds(resp, results);
+  }
+
+  protected void handleHeatmapQuery(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException{
+
+    QueryRequest request;
+    Envelope envelope;
 
     try {
-      params = extractParams(mapping, json);
+      //GET lets map clients and proxies cache tiles, POST takes shapes too big for a url
+      if(req.getMethod().equals("GET")) {
+        request = requestReader.readValue(mapper.valueToTree(getQueryParams(req)));
+      } else {
+        request = readRequest(req);
+      }
+      request.require("zoom");
+
+      if(request.has("bbox")) {
+        envelope = getEnvelope(request.getBbox());
+      } else if(request.getGeojson() != null) {
+        envelope = HeatmapQuery.getEnvelope(request.getGeojson());
+      } else if(request.has("geojson")) {
+        envelope = request.getGeometry() == null ? null : request.getGeometry().getEnvelopeInternal();
+      } else {
+        throw new Exception("bbox or geojson required");
+      }
+
+      if(envelope == null) {
+        throw new Exception("geojson must be a valid geometry");
+      }
     } catch (Exception e) {
-      resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-      PrintWriter writer = resp.getWriter();
-      writer.print("{\"error\":\""+e.getMessage()+"\"}");
+      writeError(resp, e);
       return;
     }
 
-    EntryQuery idx = new EntryQuery(graphDb);
+    HeatmapQuery heatmap = new HeatmapQuery(graphDb, boxCache, queryExecutor, replica);
+    int depth = HeatmapQuery.getDepth(request.getZoom());
+
+    //cells only depend on the envelope and depth, so any shape with the same envelope shares a tag
+    List<Object> key = new ArrayList<>();
+    key.add(envelope.getMinX());
+    key.add(envelope.getMaxX());
+    key.add(envelope.getMinY());
+    key.add(envelope.getMaxY());
+    key.add(depth);
 
-    ArrayList<String> results = idx.queryPolygon(
-        (String) params.get("geojson"),
-        (Integer) params.get("from"),
-        (Integer) params.get("to"),
-        (ArrayList<String>) params.get("tags"),
-        (Integer) params.get("depth"),
-        (Integer) params.get("count"),
-        (Integer) params.get("offset"));
+    //read the version before the cells, so a write in between only makes the tag stale
+    String etag = "\"" + Long.toHexString(heatmap.getVersion()) + "-" + Long.toHexString(GeoJSONReader.hash(key)) + "\"";
+    resp.setHeader("ETag", etag);
+    resp.setHeader("Cache-Control", "max-age=0, must-revalidate");
 
-    OutputStream os = resp.getOutputStream();
+    if(matchesETag(req.getHeader("If-None-Match"), etag)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    List<double[]> cells = heatmap.queryEnvelope(envelope, depth, queryExecutor.getParallelism(request.getParallelism()));
+
+    //[[lon, lat, count, lastUpdated], ...]
     resp.setStatus(HttpServletResponse.SC_OK);
-    mapper.writeValue(os, results);
+    JsonGenerator generator = getGenerator(resp);
+    generator.writeStartArray();
+    for(double[] cell : cells) {
+      //boxes whose entries are all gone
+      if(cell[2] == 0) {
+        continue;
+      }
+      generator.writeStartArray();
+      generator.writeNumber(cell[0]);
+      generator.writeNumber(cell[1]);
+      generator.writeNumber((long) cell[2]);
+      generator.writeNumber((long) cell[3]);
+      generator.writeEndArray();
+    }
+    generator.writeEndArray();
+    generator.close();
   }
 
-  Map<String, Object> getJSON(HttpServletRequest req)
-      throws ServletException, IOException{
+  /**
+   * minLon,minLat,maxLon,maxLat as in a geojson bbox.
+   */
+  Envelope getEnvelope(ArrayList<Double> bbox) throws Exception {
+    if(bbox.size() != 4) {
+      throw new Exception("bbox must have 4 numbers");
+    }
+    return new Envelope(bbox.get(0), bbox.get(2), bbox.get(1), bbox.get(3));
+  }
+
+  boolean matchesETag(String ifNoneMatch, String etag) {
+    if(ifNoneMatch == null) {
+      return false;
+    }
+    for(String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if(tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
 
-    InputStream is = req.getInputStream();
-    int requestLength = req.getContentLength();
-    byte[] buffer = new byte[requestLength];
-    IOUtils.readFully(is, buffer, 0, requestLength);
+  /**
+   * Query string params typed the way the JSON body would be: ints,
+   * comma separated numbers as lists and anything else as strings.
+   */
+  Map<String, Object> getQueryParams(HttpServletRequest req) {
+    Map<String, Object> params = new HashMap<>();
+    for(Map.Entry<String, String[]> param : req.getParameterMap().entrySet()) {
+      String value = param.getValue()[0];
+      try {
+        params.put(param.getKey(), Integer.valueOf(value));
+        continue;
+      } catch (NumberFormatException e) {
+        //not an int
+      }
+      if(value.contains(",")) {
+        try {
+          ArrayList<Object> list = new ArrayList<>();
+          for(String member : value.split(",")) {
+            list.add(Double.valueOf(member));
+          }
+          params.put(param.getKey(), list);
+          continue;
+        } catch (NumberFormatException e) {
+          //not a list of numbers
+        }
+      }
+      params.put(param.getKey(), value);
+    }
+    return params;
+  }
+
+  /**
+   * Answer 400 with {"error":"..."}. Parse errors quote the input, so the
+   * message is escaped like any other string we write.
+   */
+  void writeError(HttpServletResponse resp, Exception e) throws IOException {
+    writeError(resp, HttpServletResponse.SC_BAD_REQUEST, e);
+  }
 
-    return (Map<String, Object>) mapper.readValue(buffer, Map.class);
+  void writeError(HttpServletResponse resp, int status, Exception e) throws IOException {
+    resp.setStatus(status);
+    JsonGenerator generator = getGenerator(resp);
+    generator.writeStartObject();
+    generator.writeStringField("error", e.getMessage());
+    generator.writeEndObject();
+    generator.close();
   }
 
-  HashMap<String,Object> extractParams(HashMap<String,String> mapping, Map<String, Object> json) throws Exception {
+  /**
+   * Replace what a query that failed midway started writing with a 500,
+   * dropping the generator's unsent output with it. Returns false if part
+   * of the response already went out, the caller then has to rethrow so
+   * the connection is cut rather than the body ended as if complete.
+   */
+  boolean writeFailure(HttpServletResponse resp, Exception e) throws IOException {
+    if(resp.isCommitted()) {
+      return false;
+    }
+    logger.error("Query failed", e);
+    resp.reset();
+    resp.setContentType(CONTENT_TYPE);
+    writeError(resp, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e);
+    return true;
+  }
 
-    HashMap<String,Object> params = new HashMap<>();
-    Object temp;
+  JsonGenerator getGenerator(HttpServletResponse resp) throws IOException {
+    return mapper.getJsonFactory().createJsonGenerator(resp.getOutputStream(), JsonEncoding.UTF8);
+  }
 
-    for (Map.Entry<String, String> entry : mapping.entrySet()) {
-      temp = json.get(entry.getKey());
+  void writeIds(HttpServletResponse resp, List<String> ids) throws IOException {
+    JsonGenerator generator = getGenerator(resp);
+    generator.writeStartArray();
+    for(String id : ids) {
+      generator.writeString(id);
+    }
+    generator.writeEndArray();
+    generator.close();
+  }
 
-      if(temp == null) {
-        throw new Exception(entry.getKey() + " must be of type " + entry.getValue());
+  /**
+   * Nodes and relationships as their id and properties, paths as the list
+   * of their nodes and relationships, anything else as jackson writes it.
+   */
+  void writeCypherValue(JsonGenerator generator, Object value) throws IOException {
+    if(value instanceof Node) {
+      Node node = (Node) value;
+      generator.writeStartObject();
+      generator.writeNumberField("id", node.getId());
+      writeProperties(generator, node);
+      generator.writeEndObject();
+    } else if(value instanceof Relationship) {
+      Relationship rel = (Relationship) value;
+      generator.writeStartObject();
+      generator.writeNumberField("id", rel.getId());
+      generator.writeStringField("type", rel.getType().name());
+      generator.writeNumberField("start", rel.getStartNode().getId());
+      generator.writeNumberField("end", rel.getEndNode().getId());
+      writeProperties(generator, rel);
+      generator.writeEndObject();
+    } else if(value instanceof Map) {
+      generator.writeStartObject();
+      for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        generator.writeFieldName(String.valueOf(entry.getKey()));
+        writeCypherValue(generator, entry.getValue());
       }
-
-      switch (entry.getValue()) {
-        case "double":
-          if(temp.getClass().equals(Double.class)) {
-           params.put(entry.getKey(),temp);
-          } else if(temp.getClass().equals(Integer.class)) {
-           params.put(entry.getKey(),((Integer)temp).doubleValue());
-          } else {
-           throw new Exception(entry.getKey() + " must be of type " + entry.getValue());
-          }
-          break;
-        case "int":
-          if(temp.getClass().equals(Integer.class)) {
-            params.put(entry.getKey(),temp);
-          } else {
-            throw new Exception(entry.getKey() + " must be of type " + entry.getValue());
-          }
-          break;
-        case "string":
-          if(temp.getClass().equals(String.class)) {
-            params.put(entry.getKey(),temp);
-          } else {
-            throw new Exception(entry.getKey() + " must be of type " + entry.getValue());
-          }
-          break;
-        case "arraylist":
-          if(temp.getClass().equals(ArrayList.class)) {
-            params.put(entry.getKey(),temp);
-          } else {
-            throw new Exception(entry.getKey() + " must be of type " + entry.getValue());
-          }
-          break;
-        default:throw new Exception("Unknown type " + entry.getValue());
+      generator.writeEndObject();
+    } else if(value instanceof Iterable) {
+      generator.writeStartArray();
+      for(Object member : (Iterable<?>) value) {
+        writeCypherValue(generator, member);
       }
+      generator.writeEndArray();
+    } else {
+      generator.writeObject(value);
     }
+  }
 
-    return params;
+  private void writeProperties(JsonGenerator generator, PropertyContainer container) throws IOException {
+    generator.writeObjectFieldStart("properties");
+    for(String key : container.getPropertyKeys()) {
+      generator.writeObjectField(key, container.getProperty(key));
+    }
+    generator.writeEndObject();
+  }
+
+  /**
+   * Parse the request body straight from the stream, whatever its length
+   * or transfer encoding.
+   */
+  QueryRequest readRequest(HttpServletRequest req) throws IOException {
+    return requestReader.readValue(req.getInputStream());
   }
 
   String[] getUriPieces(String uri) {
@@ -0,0 +1,92 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Last applied revision of each document, for answering revsDiff.
+ *
+ * Revisions are stored in the "rev" property of Entry nodes, with a
+ * bounded LRU in front so most checks never reach the graph. Deleted
+ * docs and docs without geojson only live in the cache.
+ */
+public class RevisionStore {
+
+  private GraphDatabaseService graphDb;
+
+  private final int maxSize;
+
+  private final LinkedHashMap<String, String> revisions;
+
+  public RevisionStore(GraphDatabaseService graphDb, int maxSize) {
+    this.graphDb = graphDb;
+    this.maxSize = maxSize;
+    this.revisions = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > RevisionStore.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * Get the last applied revision of each id we know about.
+   * Ids we have never seen are left out of the result.
+   */
+  public Map<String, String> getRevisions(Collection<String> ids) {
+    Map<String, String> found = new HashMap<>();
+    Map<String, String> loaded = new HashMap<>();
+
+    synchronized (revisions) {
+      for(String id : ids) {
+        String rev = revisions.get(id);
+        if(rev != null) {
+          found.put(id, rev);
+        }
+      }
+    }
+
+    if(found.size() == ids.size()) {
+      return found;
+    }
+
+    //look up every miss in one read transaction
+    try ( Transaction tx = graphDb.beginTx() ) {
+      Index<Node> entries = graphDb.index().forNodes(Settings.NEO_ENTRY);
+      for(String id : ids) {
+        if(found.containsKey(id)) {
+          continue;
+        }
+        Node entry = entries.get("id", id).getSingle();
+        if(entry != null && entry.hasProperty("rev")) {
+          loaded.put(id, (String) entry.getProperty("rev"));
+        }
+      }
+      tx.success();
+    }
+
+    remember(loaded);
+    found.putAll(loaded);
+    return found;
+  }
+
+  /**
+   * Remember revisions that have been committed.
+   */
+  public void remember(Map<String, String> committed) {
+    synchronized (revisions) {
+      for(Map.Entry<String, String> revision : committed.entrySet()) {
+        if(revision.getValue() != null) {
+          revisions.put(revision.getKey(), revision.getValue());
+        }
+      }
+    }
+  }
+}
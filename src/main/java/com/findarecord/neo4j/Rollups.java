@@ -0,0 +1,354 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * count/lastUpdated rollups on BOX nodes, for heatmaps, and minFrom/maxTo
+ * and tagCodes summaries, for pruning queries by date and tag.
+ *
+ * The count of a box is the number of entries covering at least one cell
+ * at or below it. Changes are collected as deltas per box while entries
+ * are written, and applied once per transaction by apply(), so a box
+ * shared by every entry in a batch (like the 10 degree ones) is written
+ * once rather than once per entry. Every apply also bumps rollupVersion
+ * on ROOT. lastUpdated is in seconds, as heatmap clients have always had it.
+ *
+ * minFrom/maxTo span the dates of those same entries, and tagCodes holds
+ * the codes of all their tags. They only ever widen, so after deletes they
+ * may be looser than needed but never miss an entry. Queries only trust
+ * them once ROOT has temporalSummaries (tagSummaries) set, which a rebuild
+ * does, as does creating a new ROOT.
+ */
+public class Rollups {
+
+  //entries per transaction when rebuilding
+  private final static int REBUILD_BATCH = 10000;
+
+  private BoxWriter boxWriter;
+
+  //count change per cell, 0 if only lastUpdated changes
+  private HashMap<Long, Integer> deltas = new HashMap<>();
+
+  //{from, to} every cell has to widen to
+  private HashMap<Long, int[]> ranges = new HashMap<>();
+
+  //tag codes every cell has to include
+  private HashMap<Long, BitSet> tagSets = new HashMap<>();
+
+  public Rollups(BoxWriter boxWriter) {
+    this.boxWriter = boxWriter;
+  }
+
+  /**
+   * An entry with this cover was added.
+   */
+  public void add(long[] cells, int from, int to, int[] tagCodes) {
+    for(long cell : closure(cells)) {
+      delta(cell, 1);
+      widen(cell, from, to, tagCodes);
+    }
+  }
+
+  /**
+   * An entry with this cover was removed.
+   */
+  public void remove(long[] cells) {
+    for(long cell : closure(cells)) {
+      delta(cell, -1);
+    }
+  }
+
+  /**
+   * An entry moved from one cover to another.
+   */
+  public void move(long[] oldCells, long[] newCells, int from, int to, int[] tagCodes) {
+    HashSet<Long> oldBoxes = closure(oldCells);
+    HashSet<Long> newBoxes = closure(newCells);
+    for(long cell : oldBoxes) {
+      delta(cell, newBoxes.contains(cell) ? 0 : -1);
+    }
+    for(long cell : newBoxes) {
+      if(!oldBoxes.contains(cell)) {
+        delta(cell, 1);
+      }
+      widen(cell, from, to, tagCodes);
+    }
+  }
+
+  /**
+   * An entry with this cover changed, but not where it is.
+   */
+  public void touch(long[] cells, int from, int to, int[] tagCodes) {
+    for(long cell : closure(cells)) {
+      delta(cell, 0);
+      widen(cell, from, to, tagCodes);
+    }
+  }
+
+  /**
+   * Write the collected deltas. Call inside the transaction, before it succeeds.
+   */
+  public void apply() {
+    if(deltas.isEmpty()) {
+      return;
+    }
+
+    long now = System.currentTimeMillis() / 1000l;
+    for(Map.Entry<Long, Integer> delta : deltas.entrySet()) {
+      Node box = boxWriter.getBox(delta.getKey());
+      int count = (int) box.getProperty("count", 0) + delta.getValue();
+      box.setProperty("count", Math.max(count, 0));
+      box.setProperty("lastUpdated", now);
+
+      int[] range = ranges.get(delta.getKey());
+      if(range != null) {
+        box.setProperty("minFrom", Math.min(range[0], (int) box.getProperty("minFrom", range[0])));
+        box.setProperty("maxTo", Math.max(range[1], (int) box.getProperty("maxTo", range[1])));
+      }
+
+      BitSet tags = tagSets.get(delta.getKey());
+      if(tags != null) {
+        int[] stored = (int[]) box.getProperty("tagCodes", new int[0]);
+        int[] union = TagDictionary.union(stored, TagDictionary.toArray(tags));
+        if(union != stored) {
+          box.setProperty("tagCodes", union);
+        }
+      }
+    }
+    deltas.clear();
+    ranges.clear();
+    tagSets.clear();
+
+    Node root = boxWriter.getRoot();
+    root.setProperty("rollupVersion", getVersion(root) + 1);
+  }
+
+  /**
+   * Recompute every rollup and summary from the BOX_INTERSECT links of all
+   * entries, after which the summaries are trusted. Entries indexed before
+   * covers were stored get their "cells" property back as well, and links
+   * indexed before they carried a collection_id get one. Run while
+   * nothing else is writing.
+   */
+  public static void rebuild(GraphDatabaseService graphDb, BoxCache boxCache, TagDictionary tagDictionary) {
+    //{count, minFrom, maxTo} per cell
+    HashMap<Long, int[]> rollups = new HashMap<>();
+    HashMap<Long, BitSet> tags = new HashMap<>();
+    List<Long> entryIds = new ArrayList<>();
+
+    try ( Transaction tx = graphDb.beginTx() ) {
+      for(Node entry : GlobalGraphOperations.at(graphDb).getAllNodesWithLabel(DynamicLabel.label("Entry"))) {
+        entryIds.add(entry.getId());
+      }
+      tx.success();
+    }
+
+    //count covers, storing the ones (and tag codes) that are missing
+    for(int from = 0; from < entryIds.size(); from += REBUILD_BATCH) {
+      HashMap<String, Integer> createdTags = new HashMap<>();
+      try ( Transaction tx = graphDb.beginTx() ) {
+        Node root = boxCache.getRoot(graphDb);
+        for(Long id : entryIds.subList(from, Math.min(entryIds.size(), from + REBUILD_BATCH))) {
+          Node entry = graphDb.getNodeById(id);
+          long[] cells = (long[]) entry.getProperty("cells", null);
+          if(cells == null) {
+            cells = linkedCells(entry);
+            entry.setProperty("cells", cells);
+          }
+          int[] tagCodes = (int[]) entry.getProperty("tagCodes", null);
+          if(tagCodes == null) {
+            tagCodes = tagDictionary.getOrCreateCodes(graphDb, root, Arrays.asList((String[]) entry.getProperty("tags")), createdTags);
+            entry.setProperty("tagCodes", tagCodes);
+          }
+          Object collectionId = entry.getProperty("collection_id");
+          for(Relationship rel : entry.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.INCOMING)) {
+            if(!collectionId.equals(rel.getProperty("collection_id", null))) {
+              rel.setProperty("collection_id", collectionId);
+            }
+          }
+          int entryFrom = (int) entry.getProperty("from");
+          int entryTo = (int) entry.getProperty("to");
+          for(long cell : closure(cells)) {
+            int[] rollup = rollups.get(cell);
+            if(rollup == null) {
+              rollups.put(cell, new int[] {1, entryFrom, entryTo});
+            } else {
+              rollup[0]++;
+              rollup[1] = Math.min(rollup[1], entryFrom);
+              rollup[2] = Math.max(rollup[2], entryTo);
+            }
+            BitSet cellTags = tags.get(cell);
+            if(cellTags == null) {
+              cellTags = new BitSet();
+              tags.put(cell, cellTags);
+            }
+            TagDictionary.addAll(cellTags, tagCodes);
+          }
+        }
+        tx.success();
+      }
+      tagDictionary.remember(createdTags);
+    }
+
+    //clear boxes nothing covers anymore
+    List<Long> stale = new ArrayList<>();
+    try ( Transaction tx = graphDb.beginTx() ) {
+      for(Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+        //entries have tagCodes too
+        if(node.hasLabel(DynamicLabel.label("Entry"))) {
+          continue;
+        }
+        if((node.hasProperty("count") || node.hasProperty("minFrom") || node.hasProperty("tagCodes")) && !rollups.containsKey(Cell.fromNodeId((String) node.getProperty("id")))) {
+          stale.add(node.getId());
+        }
+      }
+      tx.success();
+    }
+    for(int from = 0; from < stale.size(); from += REBUILD_BATCH) {
+      try ( Transaction tx = graphDb.beginTx() ) {
+        for(Long id : stale.subList(from, Math.min(stale.size(), from + REBUILD_BATCH))) {
+          Node box = graphDb.getNodeById(id);
+          box.removeProperty("count");
+          box.removeProperty("lastUpdated");
+          box.removeProperty("minFrom");
+          box.removeProperty("maxTo");
+          box.removeProperty("tagCodes");
+        }
+        tx.success();
+      }
+    }
+
+    //then write the counts
+    long now = System.currentTimeMillis() / 1000l;
+    List<Map.Entry<Long, int[]>> boxes = new ArrayList<>(rollups.entrySet());
+    for(int from = 0; from < boxes.size(); from += REBUILD_BATCH) {
+      BoxWriter boxWriter;
+      try ( Transaction tx = graphDb.beginTx() ) {
+        boxWriter = new BoxWriter(graphDb, boxCache);
+        for(Map.Entry<Long, int[]> rollup : boxes.subList(from, Math.min(boxes.size(), from + REBUILD_BATCH))) {
+          Node box = boxWriter.getBox(rollup.getKey());
+          box.setProperty("count", rollup.getValue()[0]);
+          box.setProperty("lastUpdated", now);
+          box.setProperty("minFrom", rollup.getValue()[1]);
+          box.setProperty("maxTo", rollup.getValue()[2]);
+          box.setProperty("tagCodes", TagDictionary.toArray(tags.get(rollup.getKey())));
+        }
+        tx.success();
+      }
+      boxWriter.commit();
+    }
+
+    try ( Transaction tx = graphDb.beginTx() ) {
+      Node root = boxCache.getRoot(graphDb);
+      root.setProperty("rollupVersion", getVersion(root) + 1);
+      root.setProperty("temporalSummaries", true);
+      root.setProperty("tagSummaries", true);
+      tx.success();
+    }
+  }
+
+  /**
+   * The rollup version stored on ROOT, 0 before any rollup was written.
+   */
+  public static long getVersion(Node root) {
+    return (long) root.getProperty("rollupVersion", 0L);
+  }
+
+  /**
+   * Whether minFrom/maxTo on every BOX node cover all entries below it.
+   */
+  public static boolean hasTemporalSummaries(Node root) {
+    return (boolean) root.getProperty("temporalSummaries", false);
+  }
+
+  /**
+   * Whether tagCodes on every BOX node cover all entries below it.
+   */
+  public static boolean hasTagSummaries(Node root) {
+    return (boolean) root.getProperty("tagSummaries", false);
+  }
+
+  /**
+   * Whether a box can have entries with one of these tag codes below it.
+   * Only meaningful when the summaries are trusted.
+   */
+  public static boolean mayHaveTags(Node box, int[] tagCodes) {
+    return TagDictionary.intersects((int[]) box.getProperty("tagCodes", new int[0]), tagCodes);
+  }
+
+  /**
+   * Whether a box can have entries overlapping [from, to] below it.
+   * Only meaningful when the summaries are trusted: a box without one
+   * has no entries at all.
+   */
+  public static boolean mayOverlap(Node box, int from, int to) {
+    Object minFrom = box.getProperty("minFrom", null);
+    return minFrom != null && from <= (int) box.getProperty("maxTo") && to >= (int) minFrom;
+  }
+
+  /**
+   * Every cell on the path from level 0 to any cell of the cover, the
+   * boxes whose rollups an entry with this cover counts in.
+   */
+  public static HashSet<Long> closure(long[] cells) {
+    HashSet<Long> boxes = new HashSet<>();
+    for(long cell : cells) {
+      //ancestors are shared, stop at the first one already seen
+      while(boxes.add(cell) && Cell.level(cell) > 0) {
+        cell = Cell.parent(cell);
+      }
+    }
+    return boxes;
+  }
+
+  private static long[] linkedCells(Node entry) {
+    //old data can link the same box more than once
+    HashSet<Long> cells = new HashSet<>();
+    for(Relationship rel : entry.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.INCOMING)) {
+      cells.add(Cell.fromNodeId((String) rel.getStartNode().getProperty("id")));
+    }
+    long[] sorted = new long[cells.size()];
+    int i = 0;
+    for(long cell : cells) {
+      sorted[i++] = cell;
+    }
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private void widen(long cell, int from, int to, int[] tagCodes) {
+    int[] range = ranges.get(cell);
+    if(range == null) {
+      ranges.put(cell, new int[] {from, to});
+    } else {
+      range[0] = Math.min(range[0], from);
+      range[1] = Math.max(range[1], to);
+    }
+    BitSet tags = tagSets.get(cell);
+    if(tags == null) {
+      tags = new BitSet();
+      tagSets.put(cell, tags);
+    }
+    TagDictionary.addAll(tags, tagCodes);
+  }
+
+  private void delta(long cell, int delta) {
+    Integer current = deltas.get(cell);
+    deltas.put(cell, current == null ? delta : current + delta);
+  }
+}
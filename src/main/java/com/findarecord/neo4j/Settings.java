@@ -1,14 +1,12 @@
 package com.findarecord.neo4j;
 
-import java.math.BigDecimal;
-
 public class Settings {
 
   private Settings(){}
 
-  public final static BigDecimal DEPTH = new BigDecimal(0.001);
   public final static int DECIMALS = 3;
-  public final static BigDecimal WIDTH = new BigDecimal(10);
+  public final static int WIDTH = 10;
+  public final static int FIRST_LEVEL_WIDTH = 10;
 
   public final static String NEO_ROOT = "ROOT";
   public final static String NEO_BOX = "BOX";
@@ -16,5 +14,7 @@ public class Settings {
   public final static String NEO_BOX_LINK_INDEX = "BOX_LINK_INDEX";
   public final static String NEO_BOX_INTERSECT = "BOX_INTERSECT";
   public final static String NEO_ENTRY = "ENTRY";
+  public final static String NEO_TAG = "TAG";
+  public final static String NEO_CHECKPOINT = "CHECKPOINT";
 
 }
@@ -0,0 +1,155 @@
+package com.findarecord.neo4j;
+
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.UniqueFactory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dense int codes for tags, shared across requests.
+ *
+ * Every tag gets a Tag node in the TAG index holding its code, handed out
+ * in order from "nextTagCode" on ROOT. Entries and BOX nodes keep their
+ * tags as sorted int[] "tagCodes", so matching tags is a merge of two
+ * small arrays. Like the BoxCache, only codes of committed Tag nodes are
+ * cached here, writers remember() the ones they create after committing.
+ */
+public class TagDictionary {
+
+  private final HashMap<String, Integer> codes = new HashMap<>();
+
+  /**
+   * Sorted codes of the tags that have one, tags never indexed are left out.
+   * Must be called inside a transaction.
+   */
+  public int[] getCodes(GraphDatabaseService graphDb, Collection<String> tags) {
+    BitSet found = new BitSet();
+    for(String tag : tags) {
+      Integer code = getCode(graphDb, tag);
+      if(code != null) {
+        found.set(code);
+      }
+    }
+    return toArray(found);
+  }
+
+  /**
+   * Sorted codes of the tags, creating the missing ones under root. Codes
+   * created here are added to created, to be remembered once committed.
+   */
+  public int[] getOrCreateCodes(final GraphDatabaseService graphDb, final Node root, Collection<String> tags, Map<String, Integer> created) {
+    BitSet found = new BitSet();
+    for(String tag : tags) {
+      Integer code = created.get(tag);
+      if(code == null) {
+        code = getCode(graphDb, tag);
+      }
+      if(code == null) {
+        UniqueFactory<Node> factory = new UniqueFactory.UniqueNodeFactory( graphDb, Settings.NEO_TAG )
+        {
+          @Override
+          protected void initialize( Node created, Map<String, Object> properties )
+          {
+            created.setProperty( "tag", properties.get( "tag" ) );
+            created.setProperty( "code", nextCode(graphDb, root) );
+            created.addLabel(DynamicLabel.label("Tag"));
+          }
+        };
+        code = (int) factory.getOrCreate("tag", tag).getProperty("code");
+        created.put(tag, code);
+      }
+      found.set(code);
+    }
+    return toArray(found);
+  }
+
+  /**
+   * Remember codes that have been committed.
+   */
+  public synchronized void remember(Map<String, Integer> committed) {
+    codes.putAll(committed);
+  }
+
+  private Integer getCode(GraphDatabaseService graphDb, String tag) {
+    synchronized (this) {
+      Integer code = codes.get(tag);
+      if(code != null) {
+        return code;
+      }
+    }
+
+    Node node = graphDb.index().forNodes(Settings.NEO_TAG).get("tag", tag).getSingle();
+    if(node == null) {
+      return null;
+    }
+    Integer code = (Integer) node.getProperty("code");
+
+    //a node we can see but did not create ourselves is committed
+    synchronized (this) {
+      codes.put(tag, code);
+    }
+    return code;
+  }
+
+  private static int nextCode(GraphDatabaseService graphDb, Node root) {
+    try ( Transaction tx = graphDb.beginTx() ) {
+      //held until the outer transaction ends, so no two writers get the same code
+      tx.acquireWriteLock(root);
+      int code = (int) root.getProperty("nextTagCode", 0);
+      root.setProperty("nextTagCode", code + 1);
+      tx.success();
+      return code;
+    }
+  }
+
+  public static int[] toArray(BitSet bits) {
+    int[] array = new int[bits.cardinality()];
+    int i = 0;
+    for(int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1)) {
+      array[i++] = bit;
+    }
+    return array;
+  }
+
+  public static void addAll(BitSet bits, int[] codes) {
+    for(int code : codes) {
+      bits.set(code);
+    }
+  }
+
+  /**
+   * Whether two sorted code arrays share a code.
+   */
+  public static boolean intersects(int[] a, int[] b) {
+    int i = 0;
+    int j = 0;
+    while(i < a.length && j < b.length) {
+      if(a[i] == b[j]) {
+        return true;
+      } else if(a[i] < b[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sorted union of two sorted code arrays.
+   */
+  public static int[] union(int[] a, int[] b) {
+    BitSet bits = new BitSet();
+    addAll(bits, a);
+    addAll(bits, b);
+    int[] union = toArray(bits);
+    return Arrays.equals(union, a) ? a : union;
+  }
+}
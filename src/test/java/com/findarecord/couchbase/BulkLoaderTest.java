@@ -0,0 +1,255 @@
+package com.findarecord.couchbase;
+
+import com.findarecord.neo4j.BoxCache;
+import com.findarecord.neo4j.Cell;
+import com.findarecord.neo4j.EntryIndex;
+import com.findarecord.neo4j.Settings;
+import com.findarecord.neo4j.TagDictionary;
+import junit.framework.TestCase;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class BulkLoaderTest extends TestCase {
+
+  private final static String[] TAGS = {"birth", "death", "marriage", "census", "burial"};
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private File dir;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("bulk-loader", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() {
+    delete(dir);
+  }
+
+  public void testSameStoreAsEntryIndex() throws IOException {
+    Random random = new Random(11);
+    List<Map<String, Object>> docs = new ArrayList<>();
+    for(int i = 0; i < 400; i++) {
+      docs.add(doc(random, "e" + i));
+    }
+
+    //the export mixes both line forms with lines that are left out
+    File export = new File(dir, "export.json");
+    try(PrintWriter writer = new PrintWriter(export, "UTF-8")) {
+      for(int i = 0; i < docs.size(); i++) {
+        Map<String, Object> doc = docs.get(i);
+        if(i % 2 == 0) {
+          writer.println(mapper.writeValueAsString(doc));
+        } else {
+          Map<String, Object> json = new HashMap<>(doc);
+          json.remove("key");
+          Map<String, Object> meta = new HashMap<>();
+          meta.put("id", doc.get("key"));
+          meta.put("rev", rev(i));
+          Map<String, Object> line = new HashMap<>();
+          line.put("meta", meta);
+          line.put("json", json);
+          writer.println(mapper.writeValueAsString(line));
+        }
+        if(i % 50 == 0) {
+          writer.println();
+          writer.println("{not json");
+          writer.println("{\"meta\":{\"id\":\"deleted" + i + "\",\"deleted\":true},\"json\":" + mapper.writeValueAsString(doc(random, "x")) + "}");
+          writer.println("{\"meta\":{\"id\":\"_local/" + i + "\"},\"json\":" + mapper.writeValueAsString(doc(random, "x")) + "}");
+          Map<String, Object> bad = doc(random, "bad" + i);
+          bad.put("from", "1800");
+          writer.println(mapper.writeValueAsString(bad));
+          //the first line with an id wins
+          writer.println(mapper.writeValueAsString(doc(random, "e" + (i / 2))));
+        }
+      }
+    }
+
+    File bulkDir = new File(dir, "bulk");
+    new BulkLoader(bulkDir.getPath(), "key", 3, Logger.getLogger(BulkLoaderTest.class)).load(export);
+
+    //the same docs one transaction at a time, like bulkDocs batches
+    File indexDir = new File(dir, "index");
+    GraphDatabaseService indexed = new GraphDatabaseFactory().newEmbeddedDatabase(indexDir.getPath());
+    try {
+      BoxCache boxCache = new BoxCache(1L << 20);
+      TagDictionary tagDictionary = new TagDictionary();
+      for(int start = 0; start < docs.size(); start += 64) {
+        EntryIndex entryIndex;
+        try(Transaction tx = indexed.beginTx()) {
+          entryIndex = new EntryIndex(indexed, boxCache, tagDictionary);
+          for(int i = start; i < Math.min(start + 64, docs.size()); i++) {
+            Map<String, Object> doc = docs.get(i);
+            entryIndex.indexEntry(
+                (String) doc.get("key"),
+                (String) doc.get("collection_id"),
+                (Integer) doc.get("from"),
+                (Integer) doc.get("to"),
+                new ArrayList<String>((List<String>) doc.get("tags")),
+                EntryIndex.cover((Map<String, Object>) doc.get("geojson")),
+                rev(i));
+          }
+          entryIndex.flush();
+          tx.success();
+        }
+        entryIndex.commit();
+      }
+      TreeMap<String, String> expected = describe(indexed);
+      assertEquals(docs.size(), expected.subMap("entry ", "entry~").size());
+      assertStore(expected, bulkDir);
+    } finally {
+      indexed.shutdown();
+    }
+  }
+
+  private void assertStore(Map<String, String> expected, File bulkDir) {
+    GraphDatabaseService bulk = new GraphDatabaseFactory().newEmbeddedDatabase(bulkDir.getPath());
+    try {
+      Map<String, String> actual = describe(bulk);
+      assertEquals(expected.keySet(), actual.keySet());
+      for(Map.Entry<String, String> node : expected.entrySet()) {
+        assertEquals(node.getKey(), node.getValue(), actual.get(node.getKey()));
+      }
+      //only a bulk load counts every box from scratch
+      try(Transaction tx = bulk.beginTx()) {
+        Node root = bulk.index().forNodes(Settings.NEO_ROOT).get("id", 0).getSingle();
+        assertEquals(true, root.getProperty("temporalSummaries"));
+        assertEquals(true, root.getProperty("tagSummaries"));
+        tx.success();
+      }
+    } finally {
+      bulk.shutdown();
+    }
+  }
+
+  /**
+   * Every entry, box and tag of a store by its id, with its properties,
+   * relationships and index entries, so two stores can be compared.
+   */
+  private TreeMap<String, String> describe(GraphDatabaseService graphDb) {
+    TreeMap<String, String> nodes = new TreeMap<>();
+    try(Transaction tx = graphDb.beginTx()) {
+      Node root = graphDb.index().forNodes(Settings.NEO_ROOT).get("id", 0).getSingle();
+      assertNotNull(root);
+      nodes.put("root", "nextTagCode=" + root.getProperty("nextTagCode"));
+
+      for(Node node : GlobalGraphOperations.at(graphDb).getAllNodes()) {
+        if(node.hasLabel(DynamicLabel.label("Entry"))) {
+          String id = (String) node.getProperty("id");
+          assertEquals(node, graphDb.index().forNodes(Settings.NEO_ENTRY).get("id", id).getSingle());
+          TreeSet<String> boxes = new TreeSet<>();
+          for(Relationship rel : node.getRelationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.INCOMING)) {
+            boxes.add(rel.getStartNode().getProperty("id") + "/" + rel.getProperty("collection_id"));
+          }
+          nodes.put("entry " + id, node.getProperty("collection_id")
+              + " " + node.getProperty("from") + "-" + node.getProperty("to")
+              + " tags=" + Arrays.toString((String[]) node.getProperty("tags"))
+              + " tagCodes=" + Arrays.toString((int[]) node.getProperty("tagCodes"))
+              + " rev=" + node.getProperty("rev", null)
+              + " lons=" + Arrays.toString((double[]) node.getProperty("lons"))
+              + " lats=" + Arrays.toString((double[]) node.getProperty("lats"))
+              + " cells=" + Arrays.toString((long[]) node.getProperty("cells"))
+              + " geoHash=" + node.getProperty("geoHash")
+              + " boxes=" + boxes);
+        } else if(node.hasLabel(DynamicLabel.label("Tag"))) {
+          String tag = (String) node.getProperty("tag");
+          assertEquals(node, graphDb.index().forNodes(Settings.NEO_TAG).get("tag", tag).getSingle());
+          nodes.put("tag " + tag, "code=" + node.getProperty("code"));
+        } else if(!node.equals(root)) {
+          String nodeId = (String) node.getProperty("id");
+          assertEquals(node, graphDb.index().forNodes(Settings.NEO_BOX).get("id", nodeId).getSingle());
+          String link = "none";
+          Relationship rel = node.getSingleRelationship(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK), Direction.OUTGOING);
+          if(rel != null) {
+            String id = Cell.id(Cell.fromNodeId(nodeId));
+            assertEquals(rel, graphDb.index().forRelationships(Settings.NEO_BOX_LINK_INDEX).get("id", id).getSingle());
+            link = rel.getEndNode().getProperty("id") + " " + rel.getProperty("minLon") + "," + rel.getProperty("minLat")
+                + "," + rel.getProperty("maxLon") + "," + rel.getProperty("maxLat");
+          }
+          //lastUpdated is when it was written, so it can't match
+          nodes.put("box " + nodeId, "count=" + node.getProperty("count")
+              + " " + node.getProperty("minFrom") + "-" + node.getProperty("maxTo")
+              + " tagCodes=" + Arrays.toString((int[]) node.getProperty("tagCodes"))
+              + " link=" + link);
+        }
+      }
+      tx.success();
+    }
+    return nodes;
+  }
+
+  //only the meta form of a line has a rev
+  private static String rev(int i) {
+    return i % 2 == 0 ? null : "1-e" + i;
+  }
+
+  //a point or a small box, so entries share cells at every level
+  private Map<String, Object> doc(Random random, String key) {
+    double lon = 10 + random.nextDouble() * 3;
+    double lat = 40 + random.nextDouble() * 3;
+    Map<String, Object> geojson = new HashMap<>();
+    if(random.nextBoolean()) {
+      geojson.put("type", "Point");
+      geojson.put("coordinates", Arrays.asList(lon, lat));
+    } else {
+      double size = 0.001 + random.nextDouble() * 0.02;
+      geojson.put("type", "Polygon");
+      geojson.put("coordinates", Collections.singletonList(Arrays.asList(
+          Arrays.asList(lon, lat),
+          Arrays.asList(lon + size, lat),
+          Arrays.asList(lon + size, lat + size),
+          Arrays.asList(lon, lat + size),
+          Arrays.asList(lon, lat))));
+    }
+
+    List<String> tags = new ArrayList<>();
+    for(int i = random.nextInt(3); i >= 0; i--) {
+      tags.add(TAGS[random.nextInt(TAGS.length)]);
+    }
+
+    int from = 1700 + random.nextInt(200);
+    Map<String, Object> doc = new HashMap<>();
+    doc.put("key", key);
+    doc.put("collection_id", "c" + random.nextInt(20));
+    doc.put("from", from);
+    doc.put("to", from + random.nextInt(50));
+    doc.put("tags", tags);
+    doc.put("geojson", geojson);
+    return doc;
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if(children != null) {
+      for(File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,140 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import junit.framework.TestCase;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicLabel;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+public class BoxSnapshotTest extends TestCase {
+
+  private File dir;
+
+  private GraphDatabaseService graphDb;
+
+  private BoxCache boxCache;
+
+  @Override
+  protected void setUp() throws IOException {
+    dir = File.createTempFile("box-snapshot", "");
+    dir.delete();
+    dir.mkdirs();
+    graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(new File(dir, "graph").getPath());
+    boxCache = new BoxCache(1L << 20);
+
+    GeometryFactory geometryFactory = new GeometryFactory();
+    Random random = new Random(7);
+    try(Transaction tx = graphDb.beginTx()) {
+      EntryIndex entryIndex = new EntryIndex(graphDb, boxCache, new TagDictionary());
+      for(int i = 0; i < 300; i++) {
+        ArrayList<String> tags = new ArrayList<>();
+        tags.add(random.nextBoolean() ? "birth" : "death");
+        int from = 1700 + random.nextInt(200);
+        //long collection ids, so strings cross small chunks
+        String collectionId = "collection-with-a-long-id-" + random.nextInt(60);
+        EntryCover cover = new EntryCover(geometryFactory.createPoint(new Coordinate(10 + random.nextDouble() * 3, 40 + random.nextDouble() * 3)), i);
+        entryIndex.indexEntry("e" + i, collectionId, from, from + random.nextInt(50), tags, cover, "1-" + i);
+      }
+      entryIndex.flush();
+      tx.success();
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    graphDb.shutdown();
+    delete(dir);
+  }
+
+  public void testRoundTrip() throws IOException {
+    File file = new File(dir, "boxes.snapshot");
+    BoxSnapshot snapshot = BoxSnapshot.write(graphDb, boxCache, file);
+    assertEquals(BoxSnapshot.ROOT_CELL, snapshot.getCell(0));
+
+    Map<Long, String> collections = new HashMap<>();
+    try(Transaction tx = graphDb.beginTx()) {
+      for(int box = 1; box < snapshot.getBoxCount(); box++) {
+        Node node = graphDb.getNodeById(snapshot.getNodeId(box));
+        assertEquals(Cell.fromNodeId((String) node.getProperty("id")), snapshot.getCell(box));
+        assertEquals((int) node.getProperty("count", 0), snapshot.getCount(box));
+        assertEquals(box, snapshot.find(snapshot.getCell(box)));
+      }
+      for(int posting = 0; posting < snapshot.getPostingCount(); posting++) {
+        Node entry = graphDb.getNodeById(snapshot.getEntryId(posting));
+        assertEquals(entry.getProperty("collection_id"), snapshot.getCollectionId(posting));
+        assertEquals((int) entry.getProperty("from"), snapshot.getFrom(posting));
+        assertEquals((int) entry.getProperty("to"), snapshot.getTo(posting));
+        collections.put(entry.getId(), snapshot.getCollectionId(posting));
+      }
+
+      //every entry a traversal from ROOT reaches, and only those
+      Set<Long> reachable = new HashSet<>();
+      for(Node node : graphDb.traversalDescription()
+          .breadthFirst()
+          .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_LINK), Direction.INCOMING)
+          .relationships(DynamicRelationshipType.withName(Settings.NEO_BOX_INTERSECT), Direction.OUTGOING)
+          .traverse(boxCache.getRoot(graphDb)).nodes()) {
+        if(node.hasLabel(DynamicLabel.label("Entry"))) {
+          reachable.add(node.getId());
+        }
+      }
+      assertEquals(reachable, collections.keySet());
+      tx.success();
+    }
+  }
+
+  public void testSmallChunks() throws IOException {
+    File file = new File(dir, "boxes.snapshot");
+    BoxSnapshot whole = BoxSnapshot.write(graphDb, boxCache, file);
+    //chunks of a few records, not a multiple of every record size
+    BoxSnapshot chunked = BoxSnapshot.open(file, 100);
+
+    assertEquals(whole.getBoxCount(), chunked.getBoxCount());
+    assertEquals(whole.getPostingCount(), chunked.getPostingCount());
+    int[] tagCodes = {0};
+    for(int box = 0; box < whole.getBoxCount(); box++) {
+      assertEquals(whole.getCell(box), chunked.getCell(box));
+      assertEquals(whole.getNodeId(box), chunked.getNodeId(box));
+      assertEquals(whole.getLastUpdated(box), chunked.getLastUpdated(box));
+      assertEquals(whole.getFirstChild(box), chunked.getFirstChild(box));
+      assertEquals(whole.getChildCount(box), chunked.getChildCount(box));
+      assertEquals(whole.getFirstPosting(box), chunked.getFirstPosting(box));
+      assertEquals(whole.getPostingCount(box), chunked.getPostingCount(box));
+      assertEquals(whole.mayOverlap(box, 1750, 1760), chunked.mayOverlap(box, 1750, 1760));
+      assertEquals(whole.mayHaveTags(box, tagCodes), chunked.mayHaveTags(box, tagCodes));
+    }
+    for(int posting = 0; posting < whole.getPostingCount(); posting++) {
+      EntryHit a = whole.getHit(posting);
+      EntryHit b = chunked.getHit(posting);
+      assertEquals(a.getCollectionId(), b.getCollectionId());
+      assertEquals(a.getFrom(), b.getFrom());
+      assertEquals(a.getTo(), b.getTo());
+      assertEquals(a.distance(11, 41), b.distance(11, 41));
+      assertEquals(whole.hasTags(posting, tagCodes), chunked.hasTags(posting, tagCodes));
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if(children != null) {
+      for(File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
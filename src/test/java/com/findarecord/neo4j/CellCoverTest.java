@@ -0,0 +1,92 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class CellCoverTest extends TestCase {
+
+  private final GeometryFactory geometryFactory = new GeometryFactory();
+
+  public void testPolygons() {
+    Random random = new Random(1);
+    for(int i = 0; i < 40; i++) {
+      double lon = -20 + random.nextDouble() * 40;
+      double lat = -20 + random.nextDouble() * 40;
+      assertCover(polygon(lon, lat, 0.001 + random.nextDouble() * 0.05, 0.001 + random.nextDouble() * 0.05));
+    }
+    //big enough to contain whole cells of the upper levels
+    assertCover(polygon(11.95, 41.95, 1.2, 1.1));
+  }
+
+  public void testPointsAndLines() {
+    Random random = new Random(2);
+    for(int i = 0; i < 40; i++) {
+      double lon = -170 + random.nextDouble() * 340;
+      double lat = -80 + random.nextDouble() * 160;
+      assertCover(geometryFactory.createPoint(new Coordinate(lon, lat)));
+      assertCover(geometryFactory.createLineString(new Coordinate[] {
+          new Coordinate(lon, lat),
+          new Coordinate(lon + random.nextDouble() * 0.01, lat + random.nextDouble() * 0.01)}));
+    }
+  }
+
+  public void testGridEdges() {
+    //a point on a corner touches four cells at every level
+    assertCover(geometryFactory.createPoint(new Coordinate(10, 40)));
+    assertCover(polygon(12.1, 42.2, 0.1, 0.1));
+  }
+
+  public void testMultiPolygon() {
+    assertCover(geometryFactory.createMultiPolygon(new Polygon[] {
+        polygon(12, 42, 0.02, 0.01),
+        polygon(12.01, 42.005, 0.02, 0.01),
+        polygon(-5, -5, 0.005, 0.005)}));
+  }
+
+  private void assertCover(Geometry geometry) {
+    TreeSet<Long> expected = new TreeSet<>();
+    for(int i = 0; i < geometry.getNumGeometries(); i++) {
+      for(long cell : Cell.firstLevel()) {
+        bruteForce(geometry.getGeometryN(i), cell, expected);
+      }
+    }
+    long[] cells = new long[expected.size()];
+    int i = 0;
+    for(Long cell : expected) {
+      cells[i++] = cell;
+    }
+    assertEquals(geometry.toText(), Arrays.toString(cells), Arrays.toString(CellCover.cover(geometry)));
+  }
+
+  //every contained cell, and every intersected one at MAX_LEVEL
+  private void bruteForce(Geometry geometry, long cell, TreeSet<Long> cells) {
+    Polygon polygon = Cell.toPolygon(cell, geometryFactory);
+    if(geometry.contains(polygon)) {
+      cells.add(cell);
+    } else if(geometry.intersects(polygon)) {
+      if(Cell.level(cell) == Cell.MAX_LEVEL) {
+        cells.add(cell);
+      } else {
+        for(long child : Cell.children(cell)) {
+          bruteForce(geometry, child, cells);
+        }
+      }
+    }
+  }
+
+  private Polygon polygon(double lon, double lat, double width, double height) {
+    return geometryFactory.createPolygon(geometryFactory.createLinearRing(new Coordinate[] {
+        new Coordinate(lon, lat),
+        new Coordinate(lon + width, lat),
+        new Coordinate(lon + width, lat + height),
+        new Coordinate(lon, lat + height),
+        new Coordinate(lon, lat)}), null);
+  }
+}
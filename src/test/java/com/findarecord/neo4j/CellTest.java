@@ -0,0 +1,78 @@
+package com.findarecord.neo4j;
+
+import junit.framework.TestCase;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+public class CellTest extends TestCase {
+
+  public void testNodeIdMatchesBigDecimalIds() {
+    Random random = new Random(3);
+    for(int i = 0; i < 5000; i++) {
+      //walk down like the BigDecimal index did, child corners stepped from the parent's
+      BigDecimal lon = new BigDecimal(-180 + 10 * random.nextInt(36));
+      BigDecimal lat = new BigDecimal(-90 + 10 * random.nextInt(18));
+      BigDecimal precision = new BigDecimal(10);
+      int level = random.nextInt(Cell.MAX_LEVEL + 1);
+      String nodeId = ":" + id(lon, lat);
+      for(int l = 1; l <= level; l++) {
+        precision = precision.divide(new BigDecimal(Settings.WIDTH));
+        int lonSteps = random.nextInt(Settings.WIDTH);
+        int latSteps = random.nextInt(Settings.WIDTH);
+        for(int s = 0; s < lonSteps; s++) {
+          lon = lon.add(precision);
+        }
+        for(int s = 0; s < latSteps; s++) {
+          lat = lat.add(precision);
+        }
+        nodeId += ":" + id(lon, lat);
+      }
+
+      long cell = Cell.pack(level, lon.movePointRight(Settings.DECIMALS).intValueExact(), lat.movePointRight(Settings.DECIMALS).intValueExact());
+      assertEquals(nodeId, Cell.nodeId(cell));
+      assertEquals(id(lon, lat), Cell.id(cell));
+      assertEquals(cell, Cell.fromNodeId(nodeId));
+      assertEquals(lon.doubleValue(), Cell.minLon(cell), 0);
+      assertEquals(lat.doubleValue(), Cell.minLat(cell), 0);
+      assertEquals(lon.add(precision).doubleValue(), Cell.maxLon(cell), 1e-9);
+      assertEquals(lat.add(precision).doubleValue(), Cell.maxLat(cell), 1e-9);
+    }
+  }
+
+  public void testParentAndChildren() {
+    Random random = new Random(5);
+    long[] first = Cell.firstLevel();
+    assertEquals(36 * 18, first.length);
+    for(int i = 0; i < 1000; i++) {
+      long cell = first[random.nextInt(first.length)];
+      int level = random.nextInt(Cell.MAX_LEVEL + 1);
+      for(int l = 0; l < level; l++) {
+        long[] children = Cell.children(cell);
+        assertEquals(Settings.WIDTH * Settings.WIDTH, children.length);
+        long child = children[random.nextInt(children.length)];
+        assertEquals(l + 1, Cell.level(child));
+        assertEquals(cell, Cell.parent(child));
+        assertTrue(Cell.envelope(cell).contains(Cell.envelope(child)));
+        cell = child;
+      }
+      long[] path = Cell.path(cell);
+      assertEquals(level + 1, path.length);
+      assertEquals(cell, path[level]);
+      assertEquals(0, Cell.level(path[0]));
+    }
+  }
+
+  public void testFirstChildSharesParentId() {
+    //a first child has its parent's corner, and so its BOX_LINK id
+    long cell = Cell.pack(0, 10 * Cell.STEPS, -20 * Cell.STEPS);
+    assertEquals("+10,-20", Cell.id(cell));
+    assertEquals(Cell.id(cell), Cell.id(Cell.children(cell)[0]));
+    assertEquals(":+10,-20:+10,-20", Cell.nodeId(Cell.children(cell)[0]));
+  }
+
+  //the "+lon,+lat" id BigDecimal boxes had
+  private static String id(BigDecimal lon, BigDecimal lat) {
+    return (lon.signum() >= 0 ? "+" : "") + lon + "," + (lat.signum() >= 0 ? "+" : "") + lat;
+  }
+}
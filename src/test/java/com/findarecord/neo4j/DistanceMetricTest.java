@@ -0,0 +1,57 @@
+package com.findarecord.neo4j;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class DistanceMetricTest extends TestCase {
+
+  public void testPlanar() {
+    assertEquals(0.0, DistanceMetric.PLANAR.distance(12.5, 42.5, 12, 13, 42, 43), 0);
+    assertEquals(5.0, DistanceMetric.PLANAR.distance(9, 38, 12, 13, 42, 43), 1e-12);
+  }
+
+  public void testGeodesicInside() {
+    assertEquals(0.0, DistanceMetric.GEODESIC.distance(12.5, 42.5, 12, 13, 42, 43), 1e-9);
+  }
+
+  public void testGeodesicAlongMeridian() {
+    //one degree of latitude
+    assertEquals(111.19, DistanceMetric.GEODESIC.distance(12.5, 41, 12, 13, 42, 43), 0.01);
+  }
+
+  public void testGeodesicAcrossAntimeridian() {
+    //the edge at 180 is one degree away, the one at 170 eleven
+    double distance = DistanceMetric.GEODESIC.distance(-179, 0, 170, 180, -5, 5);
+    assertEquals(DistanceMetric.haversine(-179, 0, 180, 0), distance, 1e-9);
+    assertEquals(111.19, distance, 0.01);
+
+    distance = DistanceMetric.GEODESIC.distance(179, 0, -180, -170, -5, 5);
+    assertEquals(111.19, distance, 0.01);
+  }
+
+  /**
+   * The box distance must be a lower bound of the distance to every point
+   * in the box, or best-first searches return results out of order.
+   */
+  public void testGeodesicIsLowerBound() {
+    Random random = new Random(7);
+    for(int i = 0; i < 2000; i++) {
+      double minLon = -180 + random.nextInt(350);
+      double minLat = -80 + random.nextInt(150);
+      double maxLon = minLon + 1 + random.nextInt(10);
+      double maxLat = minLat + 1 + random.nextInt(10);
+      double lon = -180 + random.nextDouble() * 360;
+      double lat = -85 + random.nextDouble() * 170;
+
+      double distance = DistanceMetric.GEODESIC.distance(lon, lat, minLon, maxLon, minLat, maxLat);
+      for(int j = 0; j <= 20; j++) {
+        for(int k = 0; k <= 20; k++) {
+          double pointLon = minLon + (maxLon - minLon) * j / 20;
+          double pointLat = minLat + (maxLat - minLat) * k / 20;
+          assertTrue(distance <= DistanceMetric.haversine(lon, lat, pointLon, pointLat) + 1e-6);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.findarecord.neo4j;
+
+import com.vividsolutions.jts.geom.Geometry;
+import junit.framework.TestCase;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class GeoJSONReaderTest extends TestCase {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private final static String[] GEOMETRIES = {
+      "{\"type\":\"Point\",\"coordinates\":[12.5,42.25]}",
+      "{\"type\":\"Point\",\"coordinates\":[12,42,100]}",
+      "{\"type\":\"MultiPoint\",\"coordinates\":[[12,42],[13.5,43]]}",
+      "{\"type\":\"LineString\",\"coordinates\":[[12,42],[13,43],[14,42.5]]}",
+      "{\"type\":\"MultiLineString\",\"coordinates\":[[[12,42],[13,43]],[[-1,-1],[-2,-2.5]]]}",
+      "{\"type\":\"Polygon\",\"coordinates\":[[[12,42],[13,42],[13,43],[12,43],[12,42]]]}",
+      "{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[10,0],[10,10],[0,10],[0,0]],[[2,2],[4,2],[4,4],[2,4],[2,2]]]}",
+      "{\"type\":\"MultiPolygon\",\"coordinates\":[[[[12,42],[13,42],[13,43],[12,42]]],[[[1,1],[2,1],[2,2],[1,1]]]]}",
+      "{\"type\":\"GeometryCollection\",\"geometries\":[{\"type\":\"Point\",\"coordinates\":[1,2]},{\"type\":\"LineString\",\"coordinates\":[[1,2],[3,4]]}]}",
+      //members we don't use are skipped
+      "{\"bbox\":[12,42,13,43],\"type\":\"Point\",\"crs\":{\"type\":\"name\"},\"coordinates\":[12,42]}"
+  };
+
+  public void testTreeAndParserAgree() throws IOException {
+    for(String json : GEOMETRIES) {
+      Geometry fromTree = GeoJSONReader.read(tree(json));
+      Geometry fromParser = read(json);
+      assertNotNull(json, fromTree);
+      assertNotNull(json, fromParser);
+      assertTrue(json, fromTree.equalsExact(fromParser));
+      assertTrue(json, fromTree.getCoordinate().equals3D(fromParser.getCoordinate()));
+    }
+  }
+
+  public void testKnownGeometry() {
+    Geometry polygon = GeoJSONReader.read(tree(GEOMETRIES[6]));
+    assertEquals("Polygon", polygon.getGeometryType());
+    assertEquals(96.0, polygon.getArea(), 0);
+  }
+
+  public void testNotGeometries() throws IOException {
+    String[] invalid = {
+        "{\"type\":\"Nope\",\"coordinates\":[1,2]}",
+        "{\"type\":\"Point\"}",
+        "{\"type\":\"Point\",\"coordinates\":[1]}",
+        "{\"type\":\"Point\",\"coordinates\":\"x\"}",
+        "{\"type\":\"Polygon\",\"coordinates\":[[[0,0],[1,1]]]}",
+        "{\"type\":\"GeometryCollection\",\"geometries\":[{\"type\":\"Nope\"}]}"
+    };
+    for(String json : invalid) {
+      assertNull(json, GeoJSONReader.read(tree(json)));
+      assertNull(json, read(json));
+    }
+    assertNull(GeoJSONReader.read((Object) "POINT(1 2)"));
+  }
+
+  public void testHashIgnoresKeyOrderAndNumberForm() {
+    long hash = GeoJSONReader.hash(tree("{\"type\":\"Point\",\"coordinates\":[12,42]}"));
+    assertEquals(hash, GeoJSONReader.hash(tree("{\"coordinates\":[12,42],\"type\":\"Point\"}")));
+    assertEquals(hash, GeoJSONReader.hash(tree("{\"type\":\"Point\",\"coordinates\":[12.0,42.0]}")));
+    assertFalse(hash == GeoJSONReader.hash(tree("{\"type\":\"Point\",\"coordinates\":[42,12]}")));
+    assertFalse(hash == GeoJSONReader.hash(tree("{\"type\":\"Point\",\"coordinates\":[[12,42]]}")));
+  }
+
+  public void testHashIsStable() {
+    //stored as geoHash on entries, so it must never change between releases
+    long empty = (0xcbf29ce484222325L ^ '{') * 0x100000001b3L;
+    empty = (empty ^ '}') * 0x100000001b3L;
+    assertEquals(empty, GeoJSONReader.hash(tree("{}")));
+    assertEquals(0xea6a2d30a8c6cb4fL, GeoJSONReader.hash(tree("{\"type\":\"Point\",\"coordinates\":[12,42]}")));
+    assertEquals(0x6687b568208d7a6dL, GeoJSONReader.hash("POINT(12 42)"));
+  }
+
+  private Geometry read(String json) throws IOException {
+    JsonParser parser = mapper.getJsonFactory().createJsonParser(json);
+    parser.nextToken();
+    Geometry geometry = GeoJSONReader.read(parser);
+    assertNull(parser.nextToken());
+    return geometry;
+  }
+
+  private Map<String, Object> tree(String json) {
+    try {
+      return mapper.readValue(json, Map.class);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package com.findarecord.neo4j;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+public class HitSelectorTest extends TestCase {
+
+  //nearest to 0,0 first, then by node id like EntryQuery breaks ties
+  private final Comparator<EntryHit> comparator = new Comparator<EntryHit>() {
+    @Override
+    public int compare(EntryHit hit1, EntryHit hit2) {
+      int distance = Double.compare(hit1.distance(0, 0), hit2.distance(0, 0));
+      if(distance != 0) {
+        return distance;
+      }
+      return Long.compare(hit1.getNodeId(), hit2.getNodeId());
+    }
+  };
+
+  public void testMatchesFullSort() {
+    Random random = new Random(9);
+    for(int round = 0; round < 200; round++) {
+      List<EntryHit> hits = hits(random, 1 + random.nextInt(300), 1 + random.nextInt(40));
+      int size = random.nextInt(30);
+      int offset = size == 0 ? 0 : random.nextInt(size);
+
+      HitSelector selector = new HitSelector(comparator, size);
+      for(EntryHit hit : hits) {
+        selector.add(hit);
+      }
+      assertEquals(expected(hits, size, offset), selector.getCollectionIds(offset));
+    }
+  }
+
+  public void testAddAllMatchesOneSelector() {
+    Random random = new Random(10);
+    for(int round = 0; round < 100; round++) {
+      List<EntryHit> hits = hits(random, 200, 25);
+      int size = 1 + random.nextInt(20);
+
+      //split the hits over a few partial selectors, like parallel subtrees
+      HitSelector merged = new HitSelector(comparator, size);
+      List<HitSelector> parts = new ArrayList<>();
+      for(int i = 0; i < 4; i++) {
+        parts.add(new HitSelector(comparator, size));
+      }
+      for(EntryHit hit : hits) {
+        parts.get(random.nextInt(parts.size())).add(hit);
+      }
+      for(HitSelector part : parts) {
+        merged.addAll(part);
+      }
+      assertEquals(expected(hits, size, 0), merged.getCollectionIds(0));
+    }
+  }
+
+  public void testContains() {
+    HitSelector selector = new HitSelector(comparator, 2);
+    selector.add(hit(1, "a", 1));
+    selector.add(hit(2, "b", 2));
+    assertTrue(selector.contains("a"));
+    assertTrue(selector.contains("b"));
+
+    //a better hit pushes the worst collection out
+    selector.add(hit(3, "c", 0.5));
+    assertTrue(selector.contains("c"));
+    assertTrue(selector.contains("a"));
+    assertFalse(selector.contains("b"));
+
+    //a worse hit of a kept collection changes nothing
+    selector.add(hit(4, "a", 1.5));
+    assertEquals(2, selector.getCollectionIds(0).size());
+    assertEquals("c", selector.getCollectionIds(0).get(0));
+    assertEquals("a", selector.getCollectionIds(0).get(1));
+  }
+
+  public void testEmpty() {
+    HitSelector selector = new HitSelector(comparator, 0);
+    selector.add(hit(1, "a", 1));
+    assertFalse(selector.contains("a"));
+    assertTrue(selector.getCollectionIds(0).isEmpty());
+  }
+
+  //collections of all hits sorted, each at its best hit
+  private List<String> expected(List<EntryHit> hits, int size, int offset) {
+    List<EntryHit> sorted = new ArrayList<>(hits);
+    Collections.sort(sorted, comparator);
+    LinkedHashSet<String> collectionIds = new LinkedHashSet<>();
+    for(EntryHit hit : sorted) {
+      if(collectionIds.size() == size) {
+        break;
+      }
+      collectionIds.add(hit.getCollectionId());
+    }
+    List<String> expected = new ArrayList<>(collectionIds);
+    return expected.subList(Math.min(offset, expected.size()), expected.size());
+  }
+
+  private List<EntryHit> hits(Random random, int count, int collections) {
+    List<EntryHit> hits = new ArrayList<>();
+    for(int i = 0; i < count; i++) {
+      //few distinct distances, so ties are common
+      hits.add(hit(i, "c" + random.nextInt(collections), random.nextInt(20)));
+    }
+    return hits;
+  }
+
+  private static EntryHit hit(long nodeId, String collectionId, double lon) {
+    return new EntryHit(nodeId, collectionId, 1800, 1900, new double[] {lon}, new double[] {0});
+  }
+}
@@ -0,0 +1,137 @@
+package com.findarecord.neo4j;
+
+import junit.framework.TestCase;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class QueryRequestTest extends TestCase {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  private final ObjectReader reader = mapper.reader(QueryRequest.class);
+
+  public void testReadsParams() throws Exception {
+    QueryRequest request = read("{\"lon\":12,\"lat\":42.5,\"radius\":0.1,\"from\":1800,\"to\":1900,"
+        + "\"tags\":[\"birth\",\"death\"],\"count\":10,\"offset\":5,\"precise\":true,\"metric\":\"geodesic\","
+        + "\"bbox\":[1,2.5,3,4],\"params\":{\"a\":[1,\"b\",{\"c\":false}],\"d\":null}}");
+    assertEquals(12.0, request.getLon());
+    assertEquals(42.5, request.getLat());
+    assertEquals(0.1, request.getRadius());
+    assertEquals(Integer.valueOf(1800), request.getFrom());
+    assertEquals(Integer.valueOf(1900), request.getTo());
+    assertEquals(Arrays.asList("birth", "death"), request.getTags());
+    assertEquals(Integer.valueOf(10), request.getCount());
+    assertEquals(Integer.valueOf(5), request.getOffset());
+    assertTrue(request.isPrecise());
+    assertFalse(request.isCollapse());
+    assertEquals("geodesic", request.getMetric());
+    assertEquals(Arrays.asList(1.0, 2.5, 3.0, 4.0), request.getBbox());
+
+    Map<String, Object> c = new HashMap<>();
+    c.put("c", false);
+    Map<String, Object> params = new HashMap<>();
+    params.put("a", Arrays.asList(1, "b", c));
+    params.put("d", null);
+    assertEquals(params, request.getParams());
+
+    assertTrue(request.has("lon"));
+    assertFalse(request.has("depth"));
+    request.require("lon", "lat", "radius");
+  }
+
+  public void testNullAndUnknownParams() throws Exception {
+    QueryRequest request = read("{\"from\":null,\"extra\":{\"from\":\"x\",\"list\":[[1],{}]},\"to\":1900}");
+    assertFalse(request.has("from"));
+    assertNull(request.getFrom());
+    assertEquals(Integer.valueOf(1900), request.getTo());
+    assertTrue(request.getParams().isEmpty());
+    try {
+      request.require("to", "from");
+      fail();
+    } catch (Exception e) {
+      assertEquals("from must be of type int", e.getMessage());
+    }
+  }
+
+  public void testGeojson() throws Exception {
+    QueryRequest request = read("{\"geojson\":{\"type\":\"Point\",\"coordinates\":[12,42]},\"from\":1800}");
+    assertNull(request.getGeojson());
+    assertEquals("POINT (12 42)", request.getGeometry().toText());
+    assertEquals(Integer.valueOf(1800), request.getFrom());
+
+    request = read("{\"geojson\":\"{\\\"type\\\":\\\"Point\\\"}\"}");
+    assertEquals("{\"type\":\"Point\"}", request.getGeojson());
+    assertNull(request.getGeometry());
+
+    //given, but not a geometry
+    request = read("{\"geojson\":{\"type\":\"Nope\"}}");
+    assertTrue(request.has("geojson"));
+    assertNull(request.getGeometry());
+  }
+
+  public void testTypeErrors() {
+    assertTypeError("lon must be of type double", "{\"lon\":\"12\"}");
+    assertTypeError("lat must be of type double", "{\"lat\":true}");
+    assertTypeError("from must be of type int", "{\"from\":\"1800\"}");
+    assertTypeError("from must be of type int", "{\"from\":1800.5}");
+    assertTypeError("to must be of type int", "{\"to\":3000000000}");
+    assertTypeError("depth must be of type int", "{\"depth\":[1]}");
+    assertTypeError("tags must be of type arraylist", "{\"tags\":\"birth\"}");
+    assertTypeError("tags must be of type arraylist", "{\"tags\":[\"birth\",1]}");
+    assertTypeError("precise must be of type boolean", "{\"precise\":\"true\"}");
+    assertTypeError("metric must be of type string", "{\"metric\":1}");
+    assertTypeError("geojson must be of type string", "{\"geojson\":5}");
+    assertTypeError("geojson must be of type string", "{\"geojson\":[1,2]}");
+    assertTypeError("bbox must be of type arraylist", "{\"bbox\":[1,\"2\"]}");
+    assertTypeError("params must be of type map", "{\"params\":[1]}");
+    assertTypeError("request must be an object", "[1]");
+    assertTypeError("request must be an object", "\"lon\"");
+  }
+
+  public void testMalformed() {
+    try {
+      read("{\"lon\":12,");
+      fail();
+    } catch (IOException e) {
+      //expected
+    }
+  }
+
+  public void testQueryParamTree() throws Exception {
+    //GET heatmap params come in as a tree of ints, lists of doubles and strings
+    Map<String, Object> params = new HashMap<>();
+    params.put("zoom", 3);
+    params.put("bbox", Arrays.asList(1.0, 2.0, 3.0, 4.0));
+    params.put("metric", "planar");
+    QueryRequest request = reader.readValue(mapper.valueToTree(params));
+    assertEquals(Integer.valueOf(3), request.getZoom());
+    assertEquals(Arrays.asList(1.0, 2.0, 3.0, 4.0), request.getBbox());
+    assertEquals("planar", request.getMetric());
+
+    params.put("zoom", "3x");
+    try {
+      reader.readValue(mapper.valueToTree(params));
+      fail();
+    } catch (IOException e) {
+      assertEquals("zoom must be of type int", e.getMessage());
+    }
+  }
+
+  private void assertTypeError(String message, String json) {
+    try {
+      read(json);
+      fail(json);
+    } catch (IOException e) {
+      assertEquals(json, message, e.getMessage());
+    }
+  }
+
+  private QueryRequest read(String json) throws IOException {
+    return reader.readValue(json);
+  }
+}